@@ -0,0 +1,131 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Objects;
+
+/**
+ * Benchmarks of the zone index: book parsing and tokenization, then serial and parallel builds,
+ * ranked and phrase queries on the bundled books and on synthetic corpora. Run from the module directory:
+ * <pre>
+ * java -cp out -Dbench.time=500 Benchmarks [name filter]
+ * </pre>
+ */
+public class Benchmarks {
+    private static final long SEED = 42;
+    private static final int[] SYNTHETIC_BOOKS = {100, 400};
+    private static final String[] QUERIES = {"tunnel people", "the", "red hammer", "zombie war", "the people of the red hammer tunnel"};
+
+    public static void main(String[] args) throws Exception {
+        Benchmark benchmark = new Benchmark(args);
+
+        File[] files = Objects.requireNonNull(new File("src/documents").listFiles());
+        ArrayList<FictionBook> books = new ArrayList<>();
+        for (File file : files) {
+            books.add(new FictionBook(file));
+        }
+
+        //micro
+        benchmark.run("parse.books", () -> {
+            long[] chars = {0};
+            for (FictionBook book : books) {
+                book.read(new FictionBook.Handler() {
+                    @Override
+                    public void title(String text) {
+                        chars[0] += text.length();
+                    }
+
+                    @Override
+                    public void bodyText(CharSequence text) {
+                        chars[0] += text.length();
+                    }
+                });
+            }
+            return chars[0];
+        });
+
+        ArrayList<String> texts = new ArrayList<>();
+        for (FictionBook book : books) {
+            book.read(new FictionBook.Handler() {
+                @Override
+                public void title(String text) {
+                    texts.add(text);
+                }
+
+                @Override
+                public void bodyText(CharSequence text) {
+                    texts.add(text.toString());
+                }
+            });
+        }
+        Tokenizer tokenizer = new Tokenizer();
+        benchmark.run("tokenize.books", () -> {
+            int terms = 0;
+            for (String text : texts) {
+                tokenizer.reset(text);
+                while(tokenizer.next() != null) terms++;
+            }
+            return terms;
+        });
+
+        //macro, bundled books
+        macro(benchmark, "books", files, QUERIES);
+
+        //macro, synthetic books
+        for (int count : SYNTHETIC_BOOKS) {
+            String name = "synthetic" + count;
+            if(!benchmark.enabled(macroNames(name))) continue;
+
+            SyntheticCorpus corpus = new SyntheticCorpus(SEED);
+            Path dir = Files.createTempDirectory("bench-books");
+            corpus.writeFictionBooks(dir, count, 20_000);
+            String[] queries = new String[QUERIES.length];
+            for (int i = 0; i < queries.length; i++) {
+                queries[i] = corpus.query(2);
+            }
+
+            File[] syntheticBooks = Objects.requireNonNull(dir.toFile().listFiles());
+            macro(benchmark, name, syntheticBooks, queries);
+
+            for (File book : syntheticBooks) book.delete();
+            dir.toFile().delete();
+        }
+    }
+
+    private static void macro(Benchmark benchmark, String corpus, File[] files, String[] queries) throws Exception {
+        if(!benchmark.enabled(macroNames(corpus))) return;
+
+        ZoneIndex zoneIndex = new ZoneIndex();
+        zoneIndex.setQueryCache(0, 0);
+        for (File file : files) {
+            zoneIndex.addDocument(file);
+        }
+
+        benchmark.run("build.serial." + corpus, 2, 5, () -> {
+            zoneIndex.build();
+            return zoneIndex;
+        });
+
+        zoneIndex.setBuildThreads(Runtime.getRuntime().availableProcessors());
+        benchmark.run("build.parallel." + corpus, 2, 5, () -> {
+            zoneIndex.build();
+            return zoneIndex;
+        });
+
+        zoneIndex.setPositions(true);
+        benchmark.run("build.positions." + corpus, 2, 5, () -> {
+            zoneIndex.build();
+            return zoneIndex;
+        });
+
+        zoneIndex.build();
+        int[] next = {0};
+        benchmark.run("query." + corpus, () -> zoneIndex.findWithQuery(queries[next[0]++ % queries.length]));
+        benchmark.run("phrase." + corpus, () -> zoneIndex.findWithPhrase(queries[next[0]++ % queries.length]));
+    }
+
+    private static String[] macroNames(String corpus) {
+        return new String[] {"build.serial." + corpus, "build.parallel." + corpus, "build.positions." + corpus,
+                "query." + corpus, "phrase." + corpus};
+    }
+}
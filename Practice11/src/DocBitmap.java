@@ -0,0 +1,234 @@
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Compressed set of document ids.
+ * <p>
+ * Sparse sets are kept as a sorted int array. Once the array would take more space
+ * than a plain bitset up to the largest document id, the set switches to long words.
+ */
+final class DocBitmap {
+    private static final int[] NO_DOCS = new int[0];
+
+    //sorted document ids (sparse form, words == null)
+    private int[] docs;
+    //bitset words (dense form)
+    private long[] words;
+    private int cardinality;
+
+    DocBitmap() {
+        docs = NO_DOCS;
+        words = null;
+        cardinality = 0;
+    }
+
+    void add(int docId) {
+        if(words != null) {
+            int word = docId >>> 6;
+            if(word >= words.length)
+                words = Arrays.copyOf(words, Math.max(word + 1, words.length + (words.length >> 1)));
+
+            long bit = 1L << docId;
+            if((words[word] & bit) == 0) {
+                words[word] |= bit;
+                cardinality++;
+            }
+            return;
+        }
+
+        int index = cardinality;
+        if(cardinality > 0 && docs[cardinality - 1] >= docId) {
+            index = Arrays.binarySearch(docs, 0, cardinality, docId);
+            if(index >= 0) return;
+            index = -index - 1;
+        }
+
+        if(cardinality == docs.length)
+            docs = Arrays.copyOf(docs, Math.max(4, cardinality + (cardinality >> 1)));
+        System.arraycopy(docs, index, docs, index + 1, cardinality - index);
+        docs[index] = docId;
+        cardinality++;
+
+        //array costs 4 bytes per document, bitset - 8 bytes per 64 ids
+        if(cardinality > 2 * ((docs[cardinality - 1] >>> 6) + 1))
+            toDense();
+    }
+
+    boolean contains(int docId) {
+        if(words != null) {
+            int word = docId >>> 6;
+            return word < words.length && (words[word] & (1L << docId)) != 0;
+        }
+        return Arrays.binarySearch(docs, 0, cardinality, docId) >= 0;
+    }
+
+    int cardinality() {
+        return cardinality;
+    }
+
+    boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    /**
+     * Visits document ids in ascending order.
+     */
+    void forEach(IntConsumer consumer) {
+        if(words != null) {
+            for (int word = 0; word < words.length; word++) {
+                long bits = words[word];
+                while(bits != 0) {
+                    consumer.accept((word << 6) + Long.numberOfTrailingZeros(bits));
+                    bits &= bits - 1;
+                }
+            }
+        }
+        else {
+            for (int i = 0; i < cardinality; i++) {
+                consumer.accept(docs[i]);
+            }
+        }
+    }
+
+    /**
+     * Adds every document of the set to the zone counters of the accumulator,
+     * a whole word at a time for the dense form.
+     */
+    void addTo(ScoreAccumulator accumulator, int zone) {
+        if(words != null) {
+            for (int word = 0; word < words.length; word++) {
+                if(words[word] != 0) accumulator.addWord(zone, word, words[word]);
+            }
+        }
+        else {
+            for (int i = 0; i < cardinality; i++) {
+                accumulator.add(zone, docs[i]);
+            }
+        }
+    }
+
+    static DocBitmap or(DocBitmap a, DocBitmap b) {
+        DocBitmap result = new DocBitmap();
+        if(a.words == null && b.words == null) {
+            //merge of two sorted arrays
+            result.docs = new int[a.cardinality + b.cardinality];
+            int i = 0, j = 0, n = 0;
+            while(i < a.cardinality || j < b.cardinality) {
+                int docId;
+                if(j == b.cardinality || (i < a.cardinality && a.docs[i] < b.docs[j])) docId = a.docs[i++];
+                else if(i == a.cardinality || b.docs[j] < a.docs[i]) docId = b.docs[j++];
+                else { docId = a.docs[i++]; j++; }
+                result.docs[n++] = docId;
+            }
+            result.cardinality = n;
+            result.trim();
+            return result;
+        }
+
+        long[] wordsA = a.toWords();
+        long[] wordsB = b.toWords();
+        result.words = new long[Math.max(wordsA.length, wordsB.length)];
+        for (int word = 0; word < result.words.length; word++) {
+            long bits = (word < wordsA.length ? wordsA[word] : 0) | (word < wordsB.length ? wordsB[word] : 0);
+            result.words[word] = bits;
+            result.cardinality += Long.bitCount(bits);
+        }
+        result.trim();
+        return result;
+    }
+
+    /**
+     * Documents of the first set that are not in the second one.
+     */
+    static DocBitmap andNot(DocBitmap a, DocBitmap b) {
+        DocBitmap result = new DocBitmap();
+        if(a.words == null) {
+            result.docs = new int[a.cardinality];
+            for (int i = 0; i < a.cardinality; i++) {
+                if(!b.contains(a.docs[i])) result.docs[result.cardinality++] = a.docs[i];
+            }
+        }
+        else {
+            long[] wordsB = b.toWords();
+            result.words = new long[a.words.length];
+            for (int word = 0; word < a.words.length; word++) {
+                long bits = a.words[word] & ~(word < wordsB.length ? wordsB[word] : 0);
+                result.words[word] = bits;
+                result.cardinality += Long.bitCount(bits);
+            }
+        }
+        result.trim();
+        return result;
+    }
+
+    DocBitmap copy() {
+        DocBitmap result = new DocBitmap();
+        result.docs = docs == NO_DOCS ? NO_DOCS : docs.clone();
+        result.words = words == null ? null : words.clone();
+        result.cardinality = cardinality;
+        return result;
+    }
+
+    /**
+     * Releases the unused capacity and picks the smaller of the two forms,
+     * so equal sets end up with equal representations however they were built.
+     */
+    void trim() {
+        if(cardinality == 0) {
+            docs = NO_DOCS;
+            words = null;
+            return;
+        }
+
+        int wordsCount;
+        if(words != null) {
+            wordsCount = words.length;
+            while(words[wordsCount - 1] == 0) wordsCount--;
+        }
+        else {
+            wordsCount = (docs[cardinality - 1] >>> 6) + 1;
+        }
+
+        if(cardinality > 2 * wordsCount) {
+            if(words == null) toDense();
+            else if(words.length != wordsCount) words = Arrays.copyOf(words, wordsCount);
+        }
+        else {
+            if(words != null) toSparse();
+            else if(docs.length != cardinality) docs = Arrays.copyOf(docs, cardinality);
+        }
+    }
+
+    long sizeInBytes() {
+        return words != null ? 8L * words.length : 4L * docs.length;
+    }
+
+    private long[] toWords() {
+        if(words != null) return words;
+
+        long[] result = new long[cardinality == 0 ? 0 : (docs[cardinality - 1] >>> 6) + 1];
+        for (int i = 0; i < cardinality; i++) {
+            result[docs[i] >>> 6] |= 1L << docs[i];
+        }
+        return result;
+    }
+
+    private void toDense() {
+        words = toWords();
+        docs = NO_DOCS;
+    }
+
+    private void toSparse() {
+        int[] result = new int[cardinality];
+        int i = 0;
+        for (int word = 0; word < words.length; word++) {
+            long bits = words[word];
+            while(bits != 0) {
+                result[i++] = (word << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+            }
+        }
+        docs = result;
+        words = null;
+    }
+}
@@ -0,0 +1,72 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * Applies changes of a documents directory to a zone index:
+ * new books are added, changed ones updated and removed ones deleted.
+ */
+public class DocumentsWatcher implements Closeable {
+    private final ZoneIndex index;
+    private final Path dir;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    DocumentsWatcher(ZoneIndex index, Path dir) throws IOException {
+        this.index = index;
+        this.dir = dir;
+
+        watchService = FileSystems.getDefault().newWatchService();
+        dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+
+        thread = new Thread(this::run, "zone-index-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        try {
+            while(true) {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        //events were lost - compare the directory with the indexed sources
+                        index.reconcile(dir.toFile());
+                    }
+                    else {
+                        apply(event.kind(), dir.resolve((Path)event.context()).toFile());
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            //closed
+        }
+    }
+
+    private void apply(WatchEvent.Kind<?> kind, File file) {
+        if(!file.getName().endsWith(".fb2")) return;
+
+        try {
+            if(kind == StandardWatchEventKinds.ENTRY_DELETE) index.delete(file);
+            //still being created, a modify event follows
+            else if(file.length() > 0) index.update(file);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        thread.interrupt();
+    }
+}
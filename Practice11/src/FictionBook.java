@@ -1,100 +1,183 @@
-import java.io.BufferedReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-
+import java.io.InputStream;
+
+/**
+ * FB2 book read with a streaming pull parser.
+ * <p>
+ * Only the title is kept in memory. The text is streamed to a {@link Handler} paragraph by paragraph
+ * ({@code <p>}, {@code <subtitle>}, {@code <v>}), inline markup is dropped and {@code <binary>}
+ * sections (base64 images) are skipped without being decoded.
+ */
 public class FictionBook {
 
-    private String title;
-
-    private final ArrayList<String> body;
+    //factories reuse their readers, so one per thread
+    private static final ThreadLocal<XMLInputFactory> INPUT_FACTORY = ThreadLocal.withInitial(() -> {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        return factory;
+    });
 
-    public FictionBook(File file) {
+    private final File file;
+    //of the file when the book was opened
+    private final long fileLength;
+    private final long lastModified;
 
-        body = new ArrayList<>();
-        try(BufferedReader br = new BufferedReader(new FileReader(file))) {
+    private String title;
 
-            retrieveTitle(br);
-            retrieveBody(br);
+    public FictionBook(File file) throws IOException {
+        this.file = file;
+        fileLength = file.length();
+        lastModified = file.lastModified();
 
-        } catch(IOException e) {
-            e.printStackTrace();
-        }
-    }
+        //stops right after <book-title>
+        parse(new Handler() {
+            @Override
+            public void title(String text) {
+                title = retrieveTitle(text);
+            }
 
-    private void retrieveTitle(BufferedReader br) throws IOException {
+            @Override
+            public void bodyText(CharSequence text) {
 
-        String s = br.readLine();
-        while(!s.startsWith("<book-title>")) {
-            s = br.readLine().trim();
-        }
+            }
+        }, true);
 
-        StringBuilder sb = new StringBuilder();
+        if(title == null)
+            throw new IOException("No book title in " + file);
+    }
 
-        while(!s.contains("</book-title>")) {
-            s = s.trim();
+    /**
+     * Streams the title and every paragraph of the book to the handler.
+     */
+    public void read(Handler handler) throws IOException {
+        parse(handler, false);
+    }
 
-            String[] terms = s.split("[^A-Za-z]+");
-            for (String term : terms) {
-                sb.append(term).append(" ");
+    private void parse(Handler handler, boolean titleOnly) throws IOException {
+        try(InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            XMLStreamReader reader = INPUT_FACTORY.get().createXMLStreamReader(in);
+            try {
+                StringBuilder text = new StringBuilder();
+                String textElement = null;
+                int depth = 0;
+                int textDepth = 0;
+                boolean titleRead = false;
+
+                while(reader.hasNext()) {
+                    int event = reader.next();
+
+                    if(event == XMLStreamConstants.START_ELEMENT) {
+                        String name = reader.getLocalName();
+                        if(name.equals("binary")) {
+                            skipElement(reader);
+                            continue;
+                        }
+
+                        depth++;
+                        if(textElement == null && (isParagraph(name) || (!titleRead && name.equals("book-title")))) {
+                            textElement = name;
+                            textDepth = depth;
+                            text.setLength(0);
+                        }
+                    }
+                    else if(event == XMLStreamConstants.END_ELEMENT) {
+                        if(textElement != null && depth == textDepth) {
+                            if(textElement.equals("book-title")) {
+                                titleRead = true;
+                                handler.title(text.toString());
+                                if(titleOnly) return;
+                            }
+                            else {
+                                handler.bodyText(text);
+                            }
+                            textElement = null;
+                        }
+                        depth--;
+                    }
+                    else if(textElement != null && (event == XMLStreamConstants.CHARACTERS
+                            || event == XMLStreamConstants.CDATA || event == XMLStreamConstants.SPACE)) {
+                        text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    }
+                }
+            } finally {
+                reader.close();
             }
-
-            s = br.readLine().trim();
-        }
-
-        int endIndex = s.indexOf("</book-title>");
-        if(s.contains("<book-title>")) {
-            int startIndex = s.indexOf("<book-title>") + "<book-title>".length();
-            s = s.substring(startIndex, endIndex);
+        } catch (XMLStreamException e) {
+            throw new IOException("Malformed FB2 file " + file, e);
         }
+    }
 
-        String[] terms = s.split("[^A-Za-z]+");
-        for (String term : terms) {
-            sb.append(term).append(" ");
+    //consumes events up to the matching end tag without touching the text
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while(depth > 0) {
+            int event = reader.next();
+            if(event == XMLStreamConstants.START_ELEMENT) depth++;
+            else if(event == XMLStreamConstants.END_ELEMENT) depth--;
         }
-
-        title = sb.toString().substring(0, sb.length() - 1);
     }
 
-    private void retrieveBody(BufferedReader br) throws IOException {
-        String s = br.readLine().trim();
+    private static boolean isParagraph(String name) {
+        return name.equals("p") || name.equals("subtitle") || name.equals("v");
+    }
 
-        while(s != null) {
-            s = s.trim();
-            if(s.startsWith("<p>")) {
-                addParagraph(s, "p");
-            }
-            else if(s.startsWith("<subtitle>")) {
-                addParagraph(s, "subtitle");
+    private static String retrieveTitle(String text) {
+        text = text.trim();
+        StringBuilder sb = new StringBuilder(text.length());
+
+        //runs of letters joined by one space; a leading separator leaves a leading space (as split() did)
+        boolean separated = !text.isEmpty() && !isLetter(text.charAt(0));
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if(isLetter(c)) {
+                if(separated) sb.append(' ');
+                sb.append(c);
+                separated = false;
             }
-            else if(s.startsWith("<v>")) {
-                addParagraph(s, "v");
+            else {
+                separated = true;
             }
-
-            s = br.readLine();
         }
+
+        return sb.toString();
     }
 
-    private void addParagraph(String text, String tag) {
-        String openTag = '<' + tag + '>';
-        String closeTag = "</" + tag + '>';
-        int startIndex = text.indexOf(openTag) + openTag.length();
-        int endIndex = text.indexOf(closeTag);
-        text = text.substring(startIndex, endIndex)
-                .replaceAll("<emphasis>", "")
-                .replaceAll("</emphasis>", "")
-                .replaceAll("<strong>", "")
-                .replaceAll("</strong>", "");
-
-        body.add(text);
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
     }
 
     public String getTitle() {
         return title;
     }
 
-    public ArrayList<String> getBody() {
-        return new ArrayList<>(body);
+    public File getFile() {
+        return file;
+    }
+
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Receives the text of a book while it is being read.
+     * The body text is only valid during the call.
+     */
+    public interface Handler {
+        void title(String text);
+
+        void bodyText(CharSequence text);
     }
 }
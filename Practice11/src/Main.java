@@ -1,22 +1,65 @@
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Objects;
 import java.util.Scanner;
 
 public class Main {
+    //requests in progress get this long to finish on shutdown
+    private static final int SHUTDOWN_GRACE_SECONDS = 5;
 
     public static void main(String[] args) {
-        ZoneIndex zoneIndex = new ZoneIndex();
         File dir = new File("src/documents");
+        Path indexFile = Path.of("src/output/zoneindex.bin");
+        //--serve [port] - HTTP queries instead of the console
+        boolean serve = args.length > 0 && args[0].equals("--serve");
 
+        ZoneIndex zoneIndex = null;
+        if(Files.exists(indexFile)) {
+            try {
+                zoneIndex = ZoneIndex.open(indexFile);
+                //books added, removed, renamed or changed since the segment was written
+                if(!zoneIndex.isUpToDate(dir)) zoneIndex = null;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if(zoneIndex == null) {
+            zoneIndex = new ZoneIndex();
+            zoneIndex.setBuildThreads(Runtime.getRuntime().availableProcessors());
+            //the phrase engine of the server needs the positional index
+            zoneIndex.setPositions(serve);
+            try {
+                for (File file : Objects.requireNonNull(dir.listFiles()))
+                    zoneIndex.addDocument(file);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+
+            zoneIndex.build();
+
+            try {
+                Files.createDirectories(indexFile.getParent());
+                zoneIndex.save(indexFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        //keep the index live while the REPL or the server runs, changes to an opened segment stay in memory
         try {
-            for (File file : Objects.requireNonNull(dir.listFiles()))
-                zoneIndex.addDocument(file);
-        } catch (Exception e) {
+            zoneIndex.watch(dir);
+        } catch (IOException e) {
             e.printStackTrace();
         }
 
-        zoneIndex.build();
+        if(serve) {
+            serve(zoneIndex, args.length > 1 ? Integer.parseInt(args[1]) : QueryServer.DEFAULT_PORT);
+            return;
+        }
 
         System.out.println("Zone Index Testing\n-----");
         Scanner sc = new Scanner(System.in);
@@ -32,4 +75,22 @@ public class Main {
             ans = Integer.parseInt(sc.nextLine());
         } while(ans != 0);
     }
+
+    private static void serve(ZoneIndex zoneIndex, int port) {
+        try {
+            QueryServer server = new QueryServer(port);
+            server.addEngine("zone", zoneIndex::findHits);
+            //not when the index was opened from a segment, it has no positions
+            if(zoneIndex.hasPositions()) server.addEngine("phrase", zoneIndex::findPhraseHits);
+            server.start();
+
+            //Ctrl+C stops the server gracefully
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(SHUTDOWN_GRACE_SECONDS)));
+            System.out.println("Serving http://localhost:" + server.getPort() + "/search?q=...&k=...&engine="
+                    + (zoneIndex.hasPositions() ? "zone|phrase" : "zone")
+                    + (server.isVirtualThreads() ? " on virtual threads" : ""));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 }
@@ -0,0 +1,227 @@
+import java.util.Arrays;
+
+/**
+ * Positional posting list of one term.
+ * <p>
+ * Documents are encoded in ascending id order as
+ * {@code varint(docId gap) varint(freq) varint(positions bytes) freq x varint(position gap)},
+ * and every {@link #BLOCK_SIZE} documents a skip entry keeps the id before the block and its offset,
+ * so a cursor can jump over whole blocks and over the positions of documents it does not match.
+ */
+final class PositionPostings {
+    static final int BLOCK_SIZE = 64;
+    static final int END = Integer.MAX_VALUE;
+
+    private byte[] data = new byte[16];
+    private int length;
+    private int docCount;
+    private int lastDocId = -1;
+
+    //per block: id of the document before the block (-1 for the first one), offset of the block
+    private int[] skipDocIds = new int[2];
+    private int[] skipOffsets = new int[2];
+
+    /**
+     * Adds the positions (ascending) of the term in a document.
+     */
+    void add(int docId, int[] positions, int count) {
+        if(docId <= lastDocId) {
+            insert(docId, positions, count);
+            return;
+        }
+
+        if(docCount % BLOCK_SIZE == 0) {
+            int block = docCount / BLOCK_SIZE;
+            if(block == skipDocIds.length) {
+                skipDocIds = Arrays.copyOf(skipDocIds, block * 2);
+                skipOffsets = Arrays.copyOf(skipOffsets, block * 2);
+            }
+            skipDocIds[block] = lastDocId;
+            skipOffsets[block] = length;
+        }
+
+        int positionsLength = 0;
+        for (int i = 0; i < count; i++) {
+            positionsLength += varIntLength(positions[i] - (i == 0 ? 0 : positions[i - 1]));
+        }
+
+        writeVarInt(docId - lastDocId);
+        writeVarInt(count);
+        writeVarInt(positionsLength);
+        for (int i = 0; i < count; i++) {
+            writeVarInt(positions[i] - (i == 0 ? 0 : positions[i - 1]));
+        }
+
+        lastDocId = docId;
+        docCount++;
+    }
+
+    /**
+     * Appends all documents of another list.
+     */
+    void addAll(PositionPostings other) {
+        Cursor cursor = other.cursor();
+        while(cursor.next() != END) {
+            add(cursor.docId(), cursor.positions(), cursor.freq());
+        }
+    }
+
+    int docCount() {
+        return docCount;
+    }
+
+    long sizeInBytes() {
+        return data.length + 8L * skipDocIds.length;
+    }
+
+    Cursor cursor() {
+        return new Cursor();
+    }
+
+    //documents out of order (concurrent incremental adds) - the list is encoded again
+    private void insert(int docId, int[] positions, int count) {
+        PositionPostings sorted = new PositionPostings();
+        Cursor cursor = cursor();
+        boolean inserted = false;
+        while(cursor.next() != END) {
+            if(!inserted && cursor.docId() > docId) {
+                sorted.add(docId, positions, count);
+                inserted = true;
+            }
+            if(cursor.docId() != docId) sorted.add(cursor.docId(), cursor.positions(), cursor.freq());
+        }
+        if(!inserted) sorted.add(docId, positions, count);
+
+        data = sorted.data;
+        length = sorted.length;
+        docCount = sorted.docCount;
+        lastDocId = sorted.lastDocId;
+        skipDocIds = sorted.skipDocIds;
+        skipOffsets = sorted.skipOffsets;
+    }
+
+    private void writeVarInt(int value) {
+        if(length + 5 > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, length + 5));
+
+        while((value & ~0x7F) != 0) {
+            data[length++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[length++] = (byte)value;
+    }
+
+    private static int varIntLength(int value) {
+        int bytes = 1;
+        while((value & ~0x7F) != 0) {
+            value >>>= 7;
+            bytes++;
+        }
+        return bytes;
+    }
+
+    /**
+     * Iterates the documents of the list; positions are decoded only when asked for.
+     * A cursor sees the documents added before it was created.
+     */
+    final class Cursor {
+        private final int count = docCount;
+        private int index = -1;
+        private int docId = -1;
+        private int offset;
+        private int freq;
+        private int positionsOffset;
+        private int positionsLength;
+        private int[] positions = new int[8];
+
+        int docId() {
+            return index < 0 ? -1 : index < count ? docId : END;
+        }
+
+        int freq() {
+            return freq;
+        }
+
+        int docCount() {
+            return count;
+        }
+
+        /**
+         * Moves to the next document.
+         * @return its id or END.
+         */
+        int next() {
+            if(index >= count) return END;
+            if(++index == count) return END;
+
+            docId += readVarInt();
+            freq = readVarInt();
+            positionsLength = readVarInt();
+            positionsOffset = offset;
+            offset += positionsLength;
+            return docId;
+        }
+
+        /**
+         * Moves to the first document with an id >= target, skipping whole blocks when possible.
+         * @return its id or END.
+         */
+        int advance(int target) {
+            if(index >= 0 && index < count && docId >= target) return docId;
+
+            //last block starting after a document < target
+            int blocks = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            int lo = Math.max(0, index / BLOCK_SIZE + 1);
+            int hi = blocks - 1;
+            int block = -1;
+            while(lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if(skipDocIds[mid] < target) {
+                    block = mid;
+                    lo = mid + 1;
+                }
+                else hi = mid - 1;
+            }
+            if(block >= 0) {
+                index = block * BLOCK_SIZE - 1;
+                docId = skipDocIds[block];
+                offset = skipOffsets[block];
+            }
+
+            int doc;
+            do {
+                doc = next();
+            } while(doc < target);
+            return doc;
+        }
+
+        /**
+         * Decodes the positions of the current document.
+         * @return a reused array, the first freq() values are the positions.
+         */
+        int[] positions() {
+            if(positions.length < freq) positions = new int[Math.max(freq, positions.length * 2)];
+
+            int saved = offset;
+            offset = positionsOffset;
+            int position = 0;
+            for (int i = 0; i < freq; i++) {
+                position += readVarInt();
+                positions[i] = position;
+            }
+            offset = saved;
+            return positions;
+        }
+
+        private int readVarInt() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[offset++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while((b & 0x80) != 0);
+            return value;
+        }
+    }
+}
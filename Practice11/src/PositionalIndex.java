@@ -0,0 +1,203 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Optional positional layer of the zone index: term -> positions of the term in every document.
+ * <p>
+ * Title words are numbered from 0 and body words from {@link #BODY_OFFSET}, so a phrase never spans
+ * the two zones and the zone of a match is known from its position.
+ */
+final class PositionalIndex {
+    static final int BODY_OFFSET = 1 << 16;
+
+    private final HashMap<String, PositionPostings> postings = new HashMap<>();
+
+    /**
+     * Adds the positions of a document; documents are expected in ascending id order.
+     */
+    void add(int docId, DocumentPositions document) {
+        for (Map.Entry<String, DocumentPositions.Positions> entry : document.terms.entrySet()) {
+            PositionPostings termPostings = postings.get(entry.getKey());
+            if(termPostings == null) {
+                termPostings = new PositionPostings();
+                postings.put(entry.getKey(), termPostings);
+            }
+
+            termPostings.add(docId, entry.getValue().values, entry.getValue().size);
+        }
+    }
+
+    /**
+     * Appends an index of documents with greater ids.
+     */
+    void addAll(PositionalIndex other) {
+        for (Map.Entry<String, PositionPostings> entry : other.postings.entrySet()) {
+            PositionPostings termPostings = postings.get(entry.getKey());
+            if(termPostings == null) postings.put(entry.getKey(), entry.getValue());
+            else termPostings.addAll(entry.getValue());
+        }
+    }
+
+    long sizeInBytes() {
+        long size = 0;
+        for (PositionPostings termPostings : postings.values()) {
+            size += termPostings.sizeInBytes();
+        }
+        return size;
+    }
+
+    /**
+     * Finds the documents containing the terms one right after another.
+     */
+    void phrase(String[] terms, MatchConsumer consumer) {
+        PositionPostings.Cursor[] cursors = cursors(terms);
+        if(cursors == null) return;
+
+        forEachCommonDoc(cursors, docId -> {
+            int[][] positions = positions(cursors);
+            int[] pointers = new int[cursors.length];
+            int titleMatches = 0;
+            int bodyMatches = 0;
+
+            //every start of the first term, the others must follow at +1, +2, ...
+            for (int i = 0; i < cursors[0].freq(); i++) {
+                int start = positions[0][i];
+                boolean matched = true;
+                for (int t = 1; t < cursors.length && matched; t++) {
+                    int expected = start + t;
+                    while(pointers[t] < cursors[t].freq() && positions[t][pointers[t]] < expected) pointers[t]++;
+                    matched = pointers[t] < cursors[t].freq() && positions[t][pointers[t]] == expected;
+                }
+
+                if(matched) {
+                    if(start < BODY_OFFSET) titleMatches++;
+                    else bodyMatches++;
+                }
+            }
+
+            if(titleMatches + bodyMatches > 0) consumer.accept(docId, titleMatches, bodyMatches);
+        });
+    }
+
+    /**
+     * Finds the documents where all terms occur within a window of distance words (in any order).
+     * Every smallest window is counted once.
+     */
+    void proximity(String[] terms, int distance, MatchConsumer consumer) {
+        PositionPostings.Cursor[] cursors = cursors(terms);
+        if(cursors == null) return;
+
+        forEachCommonDoc(cursors, docId -> {
+            int[][] positions = positions(cursors);
+            int[] pointers = new int[cursors.length];
+            int titleMatches = 0;
+            int bodyMatches = 0;
+
+            //sweep: the window spans the current positions, the smallest one moves on
+            while(true) {
+                int min = Integer.MAX_VALUE;
+                int max = Integer.MIN_VALUE;
+                int minTerm = 0;
+                for (int t = 0; t < cursors.length; t++) {
+                    int position = positions[t][pointers[t]];
+                    if(position < min) {
+                        min = position;
+                        minTerm = t;
+                    }
+                    max = Math.max(max, position);
+                }
+
+                if(max - min <= distance && (min >= BODY_OFFSET || max < BODY_OFFSET)) {
+                    if(min < BODY_OFFSET) titleMatches++;
+                    else bodyMatches++;
+                }
+
+                if(++pointers[minTerm] == cursors[minTerm].freq()) break;
+            }
+
+            if(titleMatches + bodyMatches > 0) consumer.accept(docId, titleMatches, bodyMatches);
+        });
+    }
+
+    //null if a term is not in the index
+    private PositionPostings.Cursor[] cursors(String[] terms) {
+        PositionPostings.Cursor[] cursors = new PositionPostings.Cursor[terms.length];
+        for (int t = 0; t < terms.length; t++) {
+            PositionPostings termPostings = postings.get(terms[t]);
+            if(termPostings == null) return null;
+            cursors[t] = termPostings.cursor();
+        }
+        return cursors;
+    }
+
+    //positions of the current document of every cursor (copies, the cursors reuse their arrays)
+    private static int[][] positions(PositionPostings.Cursor[] cursors) {
+        int[][] positions = new int[cursors.length][];
+        for (int t = 0; t < cursors.length; t++) {
+            positions[t] = Arrays.copyOf(cursors[t].positions(), cursors[t].freq());
+        }
+        return positions;
+    }
+
+    //documents of all cursors: the rarest term proposes, the others are advanced to it
+    private static void forEachCommonDoc(PositionPostings.Cursor[] cursors, DocConsumer consumer) {
+        Integer[] order = new Integer[cursors.length];
+        for (int t = 0; t < order.length; t++) order[t] = t;
+        Arrays.sort(order, (a, b) -> Integer.compare(cursors[a].docCount(), cursors[b].docCount()));
+
+        PositionPostings.Cursor lead = cursors[order[0]];
+        int target = lead.next();
+        while(target != PositionPostings.END) {
+            int candidate = target;
+            for (int i = 1; i < order.length && candidate == target; i++) {
+                candidate = cursors[order[i]].advance(target);
+            }
+
+            if(candidate == target) {
+                consumer.accept(target);
+                target = lead.next();
+            }
+            else {
+                target = lead.advance(candidate);
+            }
+        }
+    }
+
+    interface MatchConsumer {
+        void accept(int docId, int titleMatches, int bodyMatches);
+    }
+
+    private interface DocConsumer {
+        void accept(int docId);
+    }
+
+    /**
+     * Positions of the terms of one document, collected while it is tokenized.
+     */
+    static final class DocumentPositions {
+        private final HashMap<String, Positions> terms = new HashMap<>();
+        private int titlePosition = 0;
+        private int bodyPosition = BODY_OFFSET;
+
+        void add(String term, int zone) {
+            Positions positions = terms.get(term);
+            if(positions == null) {
+                positions = new Positions();
+                terms.put(term, positions);
+            }
+
+            positions.add(zone == ZoneIndex.TITLE_ZONE ? titlePosition++ : bodyPosition++);
+        }
+
+        private static final class Positions {
+            private int[] values = new int[4];
+            private int size;
+
+            void add(int position) {
+                if(size == values.length) values = Arrays.copyOf(values, size * 2);
+                values[size++] = position;
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Bounded LRU cache of query results.
+ * <p>
+ * Entries are keyed on the normalized query - lower case terms, sorted - so "Red Hammer" and
+ * "hammer  red" share one entry. The least recently used entries are evicted when there are more
+ * than maxEntries of them or their estimated size is over maxBytes. {@link #invalidate()} drops
+ * everything, and a result computed before an invalidation is never stored after it.
+ */
+class QueryCache {
+    static final int DEFAULT_MAX_ENTRIES = 1024;
+    static final long DEFAULT_MAX_BYTES = 4L << 20;
+
+    //object header + fields, rough but the same for every entry
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int STRING_OVERHEAD = 40;
+
+    private final int maxEntries;
+    private final long maxBytes;
+
+    //access order - the eldest entry is the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    //bumped by every invalidation
+    private long generation;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    QueryCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+    }
+
+    QueryCache(int maxEntries, long maxBytes) {
+        if(maxEntries < 0 || maxBytes < 0)
+            throw new IllegalArgumentException("Invalid cache size: " + maxEntries + " entries, " + maxBytes + " bytes");
+
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cached result of the query or computes it with the search function and caches it.
+     * The returned list is a copy, callers may change it.
+     */
+    ArrayList<String> get(String query, Function<String, ArrayList<String>> search) {
+        String key = key(query);
+
+        long searchGeneration;
+        synchronized(this) {
+            Entry entry = entries.get(key);
+            if(entry != null) {
+                hits.incrementAndGet();
+                return new ArrayList<>(Arrays.asList(entry.result));
+            }
+            searchGeneration = generation;
+        }
+        misses.incrementAndGet();
+
+        ArrayList<String> result = search.apply(query);
+        put(key, searchGeneration, result);
+        return result;
+    }
+
+    private synchronized void put(String key, long searchGeneration, ArrayList<String> result) {
+        //the index changed while searching
+        if(searchGeneration != generation) return;
+
+        Entry entry = new Entry(result.toArray(new String[0]), key);
+        if(entry.bytes > maxBytes || maxEntries == 0) return;
+
+        Entry previous = entries.put(key, entry);
+        if(previous != null) bytes -= previous.bytes;
+        bytes += entry.bytes;
+
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while(entries.size() > maxEntries || bytes > maxBytes) {
+            bytes -= eldest.next().getValue().bytes;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Drops all entries, called whenever the index changes.
+     */
+    synchronized void invalidate() {
+        entries.clear();
+        bytes = 0;
+        generation++;
+    }
+
+    /**
+     * Normalized query: lower case terms separated by one space, in alphabetical order.
+     */
+    static String key(String query) {
+        ArrayList<String> terms = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= query.length(); i++) {
+            boolean space = i == query.length() || Character.isWhitespace(query.charAt(i));
+            if(!space && start < 0) start = i;
+            else if(space && start >= 0) {
+                terms.add(query.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        terms.sort(null);
+        return String.join(" ", terms);
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long sizeInBytes() {
+        return bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "QueryCache{entries=" + entries.size() + ", bytes=" + bytes
+                + ", hits=" + hits.get() + ", misses=" + misses.get() + "}";
+    }
+
+    private static class Entry {
+        private final String[] result;
+        private final long bytes;
+
+        Entry(String[] result, String key) {
+            this.result = result;
+
+            long size = ENTRY_OVERHEAD + STRING_OVERHEAD + 2L * key.length();
+            for (String line : result) {
+                size += STRING_OVERHEAD + 2L * line.length();
+            }
+            this.bytes = size;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+import java.util.Arrays;
+
+/**
+ * Reusable per-document zone counters.
+ * <p>
+ * For every zone the number of matched query terms is kept bit-sliced: slice s holds bit s
+ * of the counters of 64 documents in one long, so adding a whole bitmap word is a carry-save addition.
+ * Only the touched words are remembered, so scoring and resetting cost O(touched words)
+ * instead of O(documents).
+ */
+final class ScoreAccumulator {
+    //[zone][slice][word]
+    private long[][][] slices;
+    private boolean[] touched;
+    private int[] touchedWords;
+    private int size;
+    private int wordsCount;
+
+    ScoreAccumulator() {
+        slices = new long[0][][];
+        touched = new boolean[0];
+        touchedWords = new int[0];
+        size = 0;
+        wordsCount = 0;
+    }
+
+    void reset(int documentsCount, int zonesCount) {
+        int words = (documentsCount + 63) >>> 6;
+        if(slices.length < zonesCount || wordsCount < words) {
+            slices = new long[zonesCount][0][];
+            touched = new boolean[words];
+            touchedWords = new int[words];
+            wordsCount = words;
+        }
+        else {
+            for (int i = 0; i < size; i++) {
+                int word = touchedWords[i];
+                touched[word] = false;
+                for (long[][] zoneSlices : slices) {
+                    for (long[] slice : zoneSlices) {
+                        slice[word] = 0;
+                    }
+                }
+            }
+        }
+        size = 0;
+    }
+
+    void add(int zone, int docId) {
+        addWord(zone, docId >>> 6, 1L << docId);
+    }
+
+    /**
+     * Increments the zone counter of every document set in the word.
+     */
+    void addWord(int zone, int word, long bits) {
+        if(!touched[word]) {
+            touched[word] = true;
+            touchedWords[size++] = word;
+        }
+
+        long[][] zoneSlices = slices[zone];
+        long carry = bits;
+        for (int s = 0; carry != 0; s++) {
+            if(s == zoneSlices.length) {
+                zoneSlices = slices[zone] = Arrays.copyOf(zoneSlices, s + 1);
+                zoneSlices[s] = new long[wordsCount];
+            }
+
+            long slice = zoneSlices[s][word];
+            zoneSlices[s][word] = slice ^ carry;
+            carry &= slice;
+        }
+    }
+
+    /**
+     * Visits every document with a non-zero counter.
+     * Its score is the sum of zone counters multiplied by the zone weights.
+     */
+    void forEachScored(float[] zoneWeights, ScoredDocConsumer consumer) {
+        for (int i = 0; i < size; i++) {
+            int word = touchedWords[i];
+
+            long any = 0;
+            for (long[][] zoneSlices : slices) {
+                for (long[] slice : zoneSlices) {
+                    any |= slice[word];
+                }
+            }
+
+            while(any != 0) {
+                int bit = Long.numberOfTrailingZeros(any);
+
+                float score = 0f;
+                for (int zone = 0; zone < zoneWeights.length; zone++) {
+                    int count = 0;
+                    long[][] zoneSlices = slices[zone];
+                    for (int s = 0; s < zoneSlices.length; s++) {
+                        count |= (int)((zoneSlices[s][word] >>> bit) & 1) << s;
+                    }
+                    score += count * zoneWeights[zone];
+                }
+                consumer.accept((word << 6) + bit, score);
+
+                any &= any - 1;
+            }
+        }
+    }
+
+    interface ScoredDocConsumer {
+        void accept(int docId, float score);
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * One document of a query result: its id, title and relevance.
+ */
+public class SearchHit {
+    private final int docId;
+    private final String title;
+    private final float score;
+
+    SearchHit(int docId, String title, float score) {
+        this.docId = docId;
+        this.title = title;
+        this.score = score;
+    }
+
+    public int getDocId() {
+        return docId;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public float getScore() {
+        return score;
+    }
+
+    @Override
+    public String toString() {
+        return docId + ". " + title + " (relevance = " + score + ")";
+    }
+}
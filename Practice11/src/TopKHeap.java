@@ -0,0 +1,106 @@
+import java.util.function.IntBinaryOperator;
+
+/**
+ * Bounded min-heap keeping the k best (docId, score) pairs.
+ * Equal scores are ordered with the tie-breaker (negative - first document goes first).
+ */
+final class TopKHeap {
+    private final int k;
+    private final IntBinaryOperator tieBreaker;
+    private final int[] docIds;
+    private final float[] scores;
+    private int size;
+
+    TopKHeap(int k, IntBinaryOperator tieBreaker) {
+        this.k = k;
+        this.tieBreaker = tieBreaker;
+        docIds = new int[k];
+        scores = new float[k];
+        size = 0;
+    }
+
+    void offer(int docId, float score) {
+        if(k == 0) return;
+
+        if(size < k) {
+            docIds[size] = docId;
+            scores[size] = score;
+            siftUp(size++);
+        }
+        else if(worse(docIds[0], scores[0], docId, score)) {
+            docIds[0] = docId;
+            scores[0] = score;
+            siftDown(0);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Empties the heap.
+     * @return document ids from the best to the worst.
+     */
+    int[] drain() {
+        return drain(null);
+    }
+
+    /**
+     * Empties the heap.
+     * @param resultScores receives the scores of the returned documents, if not null.
+     * @return document ids from the best to the worst.
+     */
+    int[] drain(float[] resultScores) {
+        int[] result = new int[size];
+        while(size > 0) {
+            result[size - 1] = docIds[0];
+            if(resultScores != null) resultScores[size - 1] = scores[0];
+            size--;
+            docIds[0] = docIds[size];
+            scores[0] = scores[size];
+            siftDown(0);
+        }
+        return result;
+    }
+
+    //(docA, scoreA) ranks below (docB, scoreB)
+    private boolean worse(int docA, float scoreA, int docB, float scoreB) {
+        if(scoreA != scoreB) return scoreA < scoreB;
+        return tieBreaker.applyAsInt(docA, docB) > 0;
+    }
+
+    private void siftUp(int i) {
+        while(i > 0) {
+            int parent = (i - 1) >>> 1;
+            if(!worse(docIds[i], scores[i], docIds[parent], scores[parent])) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while(true) {
+            int left = 2 * i + 1;
+            if(left >= size) break;
+
+            int child = left;
+            int right = left + 1;
+            if(right < size && worse(docIds[right], scores[right], docIds[left], scores[left])) child = right;
+            if(!worse(docIds[child], scores[child], docIds[i], scores[i])) break;
+
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int docId = docIds[i];
+        docIds[i] = docIds[j];
+        docIds[j] = docId;
+
+        float score = scores[i];
+        scores[i] = scores[j];
+        scores[j] = score;
+    }
+}
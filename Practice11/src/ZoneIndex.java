@@ -2,22 +2,91 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class ZoneIndex {
     private static final float TITLE_WEIGHT = 0.8f;
     private static final float BODY_WEIGHT = 0.2f;
     private static final int RESULT_SIZE = 10;
+    private static final long MERGE_DELAY_MS = 1000;
 
-    HashMap<String, HashMap<Integer, TermWeight>> zoneIndex;
+    //zones (bit z of the zone flags <-> zone z)
+    static final int TITLE_ZONE = 0;
+    static final int BODY_ZONE = 1;
+    private static final float[] ZONE_WEIGHTS = {TITLE_WEIGHT, BODY_WEIGHT};
+
+    //term -> document bitmap per zone
+    HashMap<String, ZonePostings> zoneIndex;
     ArrayList<FictionBook> documents;
 
+    //memory-mapped segment (set when the index is opened from disk), its documents have the first ids
+    private ZoneIndexSegment segment;
+    //documents of the segment deleted since it was opened, their postings stay in the mapped file
+    private DocBitmap segmentDeleted;
+
+    //workers used by build()
+    private int buildThreads = 1;
+
+    //optional positional layer for phrase and proximity queries
+    private boolean positions;
+    private PositionalIndex positionalIndex;
+
+    //incremental updates: documents added since the last merge, the delta being merged, deleted documents
+    private HashMap<String, ZonePostings> deltaIndex;
+    private HashMap<String, ZonePostings> mergingIndex;
+    private DocBitmap deleted;
+    //document path -> id
+    private final HashMap<String, Integer> docIds;
+
+    //queries - read lock, updates - write lock; merges are serialized by the merge lock
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object mergeLock = new Object();
+    private ScheduledExecutorService merger;
+    private boolean mergeScheduled;
+
+    //query scratch space, one per querying thread
+    private final ThreadLocal<ScoreAccumulator> accumulators = ThreadLocal.withInitial(ScoreAccumulator::new);
+    //results of repeated queries, dropped on every change of the index
+    private QueryCache queryCache = new QueryCache();
+
     public ZoneIndex() {
         zoneIndex = new HashMap<>();
         documents = new ArrayList<>();
+        deltaIndex = new HashMap<>();
+        deleted = new DocBitmap();
+        segmentDeleted = new DocBitmap();
+        docIds = new HashMap<>();
+    }
+
+    /**
+     * Opens an index previously written with {@link #save(Path)}.
+     * Queries are served straight from the mapped segment, no documents are parsed.
+     * Books can still be added, updated and deleted, see {@link #watch(File)}: the changes are kept
+     * in memory on top of the segment, which is never modified.
+     */
+    public static ZoneIndex open(Path path) throws IOException {
+        ZoneIndex index = new ZoneIndex();
+        index.segment = ZoneIndexSegment.open(path);
+
+        //the documents of the segment keep their ids, added ones come after them
+        for (int docId = 0; docId < index.segment.getDocumentsCount(); docId++) {
+            index.documents.add(null);
+            String sourcePath = index.segment.getSourcePath(docId);
+            if(!sourcePath.isEmpty()) index.docIds.put(sourcePath, docId);
+        }
+        return index;
     }
 
     public void addDocument(File file) throws IllegalArgumentException {
@@ -33,80 +102,611 @@ public class ZoneIndex {
         }
     }
 
+    /**
+     * Sets the number of workers used by {@link #build()}.
+     * With more than one worker, document ranges are indexed into private partial indexes
+     * which are merged afterwards; the result is the same as the serial build.
+     */
+    public void setBuildThreads(int buildThreads) {
+        if(buildThreads < 1)
+            throw new IllegalArgumentException("Invalid build threads count = " + buildThreads);
+
+        this.buildThreads = buildThreads;
+    }
+
+    /**
+     * Limits the query result cache, zero entries disables it.
+     */
+    public void setQueryCache(int maxEntries, long maxBytes) {
+        queryCache = new QueryCache(maxEntries, maxBytes);
+    }
+
+    QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * Enables the positional index (phrase and proximity queries) from the next {@link #build()}.
+     */
+    public void setPositions(boolean positions) {
+        this.positions = positions;
+    }
+
+    /**
+     * Whether phrase and proximity queries can be answered; a segment does not store positions.
+     */
+    public boolean hasPositions() {
+        return positionalIndex != null;
+    }
+
     public void build() {
-        zoneIndex = new HashMap<>();
+        synchronized(mergeLock) {
+            lock.writeLock().lock();
+            try {
+                queryCache.invalidate();
+                segment = null;
+                segmentDeleted = new DocBitmap();
+                deltaIndex = new HashMap<>();
+                mergingIndex = null;
+                deleted = new DocBitmap();
+                docIds.clear();
+                for (int docId = 0; docId < documents.size(); docId++) {
+                    if(documents.get(docId) != null)
+                        docIds.put(key(documents.get(docId).getFile()), docId);
+                }
+
+                positionalIndex = positions ? new PositionalIndex() : null;
+                if(buildThreads == 1 || documents.size() < 2) {
+                    zoneIndex = new HashMap<>();
+                    Tokenizer tokenizer = new Tokenizer();
+                    for (int docId = 0; docId < documents.size(); docId++) {
+                        processDocument(documents.get(docId), docId, zoneIndex, positionalIndex, tokenizer);
+                    }
+                }
+                else {
+                    zoneIndex = buildParallel();
+                }
+
+                for (ZonePostings postings : zoneIndex.values()) {
+                    postings.trim();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
 
-        for (int docId = 0; docId < documents.size(); docId++) {
-            processDocument(documents.get(docId), docId);
+    /**
+     * Indexes a new document into the delta index, it is searchable when the method returns.
+     */
+    public void add(File file) throws IOException {
+        if(!file.exists() || !file.getName().endsWith(".fb2"))
+            throw new IllegalArgumentException("Incorrect file");
+
+        FictionBook document = new FictionBook(file);
+        int docId;
+        lock.writeLock().lock();
+        try {
+            if(docIds.containsKey(key(file)))
+                throw new IllegalArgumentException("Document is already indexed: " + file);
+
+            docId = documents.size();
+            documents.add(document);
+            docIds.put(key(file), docId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        //parse outside the lock
+        HashMap<String, ZonePostings> documentIndex = new HashMap<>();
+        PositionalIndex documentPositions = positions ? new PositionalIndex() : null;
+        processDocument(document, docId, documentIndex, documentPositions, new Tokenizer());
+
+        lock.writeLock().lock();
+        try {
+            //deleted while being parsed
+            if(documents.get(docId) == null) return;
+
+            for (Map.Entry<String, ZonePostings> entry : documentIndex.entrySet()) {
+                ZonePostings postings = deltaIndex.get(entry.getKey());
+                if(postings == null) deltaIndex.put(entry.getKey(), entry.getValue());
+                else postings.merge(entry.getValue());
+            }
+            if(positionalIndex != null && documentPositions != null) positionalIndex.addAll(documentPositions);
+            queryCache.invalidate();
+            scheduleMerge();
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
-    private void processDocument(FictionBook doc, int docId) {
-        if(doc == null) return;
+    /**
+     * Re-indexes a changed document (or indexes a new one).
+     */
+    public void update(File file) throws IOException {
+        delete(file);
+        if(file.exists()) add(file);
+    }
 
-        //Book title (one)
-        processText(doc.getTitle(), docId, false);
+    /**
+     * Marks a document as deleted, its postings are dropped by the next merge.
+     * @return false if the document is not in the index.
+     */
+    public boolean delete(File file) {
+        lock.writeLock().lock();
+        try {
+            Integer docId = docIds.remove(key(file));
+            if(docId == null) return false;
 
-        //Sections (many)
-        for (String text : doc.getBody()) {
-            processText(text, docId, true);
+            documents.set(docId, null);
+            if(isInSegment(docId)) {
+                segmentDeleted.add(docId);
+            }
+            else {
+                deleted.add(docId);
+                scheduleMerge();
+            }
+            queryCache.invalidate();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
-    private void processText(String text, int docId, boolean bodyText) {
-        if(text == null) return;
+    /**
+     * Folds the delta index into the main index and drops the postings of deleted documents.
+     * Runs in the background after updates, queries are blocked only while the result is swapped in.
+     */
+    public void merge() {
+        synchronized(mergeLock) {
+            HashMap<String, ZonePostings> delta;
+            DocBitmap tombstones;
+            lock.writeLock().lock();
+            try {
+                mergeScheduled = false;
+                if(deltaIndex.isEmpty() && deleted.isEmpty()) return;
+
+                delta = mergingIndex = deltaIndex;
+                deltaIndex = new HashMap<>();
+                tombstones = deleted.copy();
+            } finally {
+                lock.writeLock().unlock();
+            }
 
-        String[] terms = text.split("[^A-Za-z]+");
-        for (String term : terms) {
-            term = term.trim().toLowerCase();
-            if(term.length() != 0 && term.length() <= 20) {
-                if(!zoneIndex.containsKey(term))
-                    zoneIndex.put(term, new HashMap<>());
+            //published postings are never modified, only replaced
+            HashMap<String, ZonePostings> merged = new HashMap<>(zoneIndex);
+            for (Map.Entry<String, ZonePostings> entry : delta.entrySet()) {
+                ZonePostings postings = merged.get(entry.getKey());
+                if(postings == null) postings = new ZonePostings(ZONE_WEIGHTS.length);
+                merged.put(entry.getKey(), ZonePostings.union(postings, entry.getValue()));
+            }
+            if(!tombstones.isEmpty()) {
+                merged.entrySet().removeIf(entry -> {
+                    entry.setValue(entry.getValue().without(tombstones));
+                    return entry.getValue().isEmpty();
+                });
+            }
 
-                HashMap<Integer, TermWeight> termIndex = zoneIndex.get(term);
-                if(!termIndex.containsKey(docId)) termIndex.put(docId, new TermWeight());
+            lock.writeLock().lock();
+            try {
+                zoneIndex = merged;
+                mergingIndex = null;
+                deleted = DocBitmap.andNot(deleted, tombstones);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Keeps the index in sync with a documents directory until the watcher is closed.
+     */
+    public DocumentsWatcher watch(File dir) throws IOException {
+        return new DocumentsWatcher(this, dir.toPath());
+    }
 
-                if(bodyText) zoneIndex.get(term).get(docId).setInBody(true);
-                else         zoneIndex.get(term).get(docId).setInTitle(true);
+    //under the write lock
+    private void scheduleMerge() {
+        if(mergeScheduled) return;
+
+        if(merger == null) {
+            merger = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "zone-index-merger");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        merger.schedule(this::merge, MERGE_DELAY_MS, TimeUnit.MILLISECONDS);
+        mergeScheduled = true;
+    }
+
+    private boolean isInSegment(int docId) {
+        return segment != null && docId < segment.getDocumentsCount();
+    }
+
+    private static String key(File file) {
+        return file.getAbsoluteFile().toPath().normalize().toString();
+    }
+
+    private HashMap<String, ZonePostings> buildParallel() {
+        //more shards than workers - books differ a lot in size
+        int shardsCount = Math.min(documents.size(), buildThreads * 4);
+        ExecutorService executor = Executors.newFixedThreadPool(buildThreads);
+        try {
+            //index document ranges
+            ArrayList<Callable<HashMap<String, ZonePostings>>> shardTasks = new ArrayList<>();
+            PositionalIndex[] partialPositions = new PositionalIndex[shardsCount];
+            for (int shard = 0; shard < shardsCount; shard++) {
+                int shardIndex = shard;
+                int from = (int)((long)documents.size() * shard / shardsCount);
+                int to = (int)((long)documents.size() * (shard + 1) / shardsCount);
+                shardTasks.add(() -> {
+                    HashMap<String, ZonePostings> partialIndex = new HashMap<>();
+                    PositionalIndex partialPositional = positionalIndex != null ? new PositionalIndex() : null;
+                    Tokenizer tokenizer = new Tokenizer();
+                    for (int docId = from; docId < to; docId++) {
+                        processDocument(documents.get(docId), docId, partialIndex, partialPositional, tokenizer);
+                    }
+                    partialPositions[shardIndex] = partialPositional;
+                    return partialIndex;
+                });
             }
+            List<HashMap<String, ZonePostings>> partialIndexes = getAll(executor.invokeAll(shardTasks));
+
+            //positions are appended shard by shard, in document order
+            if(positionalIndex != null) {
+                for (PositionalIndex partialPositional : partialPositions) {
+                    positionalIndex.addAll(partialPositional);
+                }
+            }
+
+            //merge, every worker takes the terms of its own hash partition (shards in document order)
+            ArrayList<Callable<HashMap<String, ZonePostings>>> mergeTasks = new ArrayList<>();
+            for (int partition = 0; partition < buildThreads; partition++) {
+                int mergePartition = partition;
+                mergeTasks.add(() -> {
+                    HashMap<String, ZonePostings> merged = new HashMap<>();
+                    for (HashMap<String, ZonePostings> partialIndex : partialIndexes) {
+                        for (Map.Entry<String, ZonePostings> entry : partialIndex.entrySet()) {
+                            if(Math.floorMod(entry.getKey().hashCode(), buildThreads) != mergePartition) continue;
+
+                            ZonePostings postings = merged.get(entry.getKey());
+                            if(postings == null) merged.put(entry.getKey(), entry.getValue());
+                            else postings.merge(entry.getValue());
+                        }
+                    }
+                    return merged;
+                });
+            }
+
+            HashMap<String, ZonePostings> result = new HashMap<>();
+            for (HashMap<String, ZonePostings> merged : getAll(executor.invokeAll(mergeTasks))) {
+                result.putAll(merged);
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Index build interrupted", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <T> List<T> getAll(List<Future<T>> futures) throws InterruptedException {
+        ArrayList<T> results = new ArrayList<>();
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Index build failed", e.getCause());
+            }
+        }
+        return results;
+    }
+
+    private void processDocument(FictionBook doc, int docId, HashMap<String, ZonePostings> index,
+                                 PositionalIndex positional, Tokenizer tokenizer) {
+        if(doc == null) return;
+
+        PositionalIndex.DocumentPositions positions = positional != null ? new PositionalIndex.DocumentPositions() : null;
+        try {
+            doc.read(new FictionBook.Handler() {
+                @Override
+                public void title(String text) {
+                    //Book title (one)
+                    processText(text, docId, TITLE_ZONE, index, positions, tokenizer);
+                }
+
+                @Override
+                public void bodyText(CharSequence text) {
+                    //Paragraphs (many)
+                    processText(text, docId, BODY_ZONE, index, positions, tokenizer);
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if(positions != null) positional.add(docId, positions);
+    }
+
+    private void processText(CharSequence text, int docId, int zone, HashMap<String, ZonePostings> index,
+                             PositionalIndex.DocumentPositions positions, Tokenizer tokenizer) {
+        if(text == null) return;
+
+        tokenizer.reset(text);
+        for (String term = tokenizer.next(); term != null; term = tokenizer.next()) {
+            ZonePostings postings = index.get(term);
+            if(postings == null) {
+                postings = new ZonePostings(ZONE_WEIGHTS.length);
+                index.put(term, postings);
+            }
+
+            postings.add(zone, docId);
+            if(positions != null) positions.add(term, zone);
         }
     }
 
     public ArrayList<String> findWithQuery(String query) {
+        return queryCache.get(query, this::search);
+    }
+
+    private ArrayList<String> search(String query) {
+        return toTitles(findHits(query, RESULT_SIZE));
+    }
+
+    /**
+     * The k documents with the best zone scores of the query, best first.
+     * Unlike {@link #findWithQuery(String)} it always searches, the result cache is not used.
+     */
+    public ArrayList<SearchHit> findHits(String query, int k) {
+        if(k < 1)
+            throw new IllegalArgumentException("Invalid result size = " + k);
+
         query = query.trim().toLowerCase();
         if(!query.matches("[a-zA-Z]+(\\s+[a-zA-Z]+)*"))
             return new ArrayList<>();
 
         String[] queryTerms = query.split("\\s+");
-        TreeMap<Float, TreeSet<String>> resultList = new TreeMap<>();
+        ScoreAccumulator accumulator = accumulators.get();
 
-        for (int docId = 0; docId < documents.size(); docId++) {
-            float docRelevance = 0f;
-            for (String term : queryTerms) {
-                if(!zoneIndex.containsKey(term)) continue;
+        lock.readLock().lock();
+        try {
+            accumulator.reset(getDocumentsCount(), ZONE_WEIGHTS.length);
 
-                TermWeight termWeight = zoneIndex.get(term).get(docId);
-                if(termWeight != null)
-                    docRelevance += ((termWeight.isInTitle() ? TITLE_WEIGHT : 0) + (termWeight.isInBody() ? BODY_WEIGHT : 0));
+            //count matched query terms per zone, walking only the postings of the query terms
+            for (String term : queryTerms) {
+                if(segment != null) {
+                    int termOrd = segment.findTerm(term);
+                    if(termOrd >= 0) {
+                        segment.forEachPosting(termOrd, (docId, zoneFlags) -> {
+                            for (int zone = 0; zone < ZONE_WEIGHTS.length; zone++) {
+                                if((zoneFlags & (1 << zone)) != 0) accumulator.add(zone, docId);
+                            }
+                        });
+                    }
+                }
+
+                //documents added since the build or since the segment was opened
+                addPostings(zoneIndex, term, accumulator);
+                if(mergingIndex != null) addPostings(mergingIndex, term, accumulator);
+                addPostings(deltaIndex, term, accumulator);
             }
-            if(docRelevance != 0f) {
-                if(!resultList.containsKey(docRelevance))
-                    resultList.put(docRelevance, new TreeSet<>());
 
-                resultList.get(docRelevance).add(documents.get(docId).getTitle());
-            }
+            //equal relevance - alphabetical order of titles
+            TopKHeap topK = new TopKHeap(k, (docA, docB) -> getTitle(docA).compareTo(getTitle(docB)));
+            DocBitmap deletedDocs = deleted;
+            DocBitmap segmentDeletedDocs = segmentDeleted;
+            accumulator.forEachScored(ZONE_WEIGHTS, (docId, score) -> {
+                if(!deletedDocs.contains(docId) && !segmentDeletedDocs.contains(docId)) topK.offer(docId, score);
+            });
+
+            return toHits(topK);
+        } finally {
+            lock.readLock().unlock();
         }
+    }
+
+    /**
+     * Documents containing the exact phrase, ranked by the zone-weighted number of its occurrences.
+     * Needs the positional index, see {@link #setPositions(boolean)}.
+     */
+    public ArrayList<String> findWithPhrase(String phrase) {
+        return toTitles(findWithPositions(phrase, -1, RESULT_SIZE));
+    }
+
+    /**
+     * The k best documents containing the exact phrase, best first, see {@link #findWithPhrase(String)}.
+     */
+    public ArrayList<SearchHit> findPhraseHits(String phrase, int k) {
+        if(k < 1)
+            throw new IllegalArgumentException("Invalid result size = " + k);
+
+        return findWithPositions(phrase, -1, k);
+    }
+
+    /**
+     * Documents containing all query terms within a window of distance words, in any order.
+     * Needs the positional index, see {@link #setPositions(boolean)}.
+     */
+    public ArrayList<String> findWithProximity(String query, int distance) {
+        if(distance < 0)
+            throw new IllegalArgumentException("Negative distance = " + distance);
+
+        return toTitles(findWithPositions(query, distance, RESULT_SIZE));
+    }
 
+    //distance < 0 - phrase
+    private ArrayList<SearchHit> findWithPositions(String query, int distance, int k) {
+        query = query.trim().toLowerCase();
+        if(!query.matches("[a-zA-Z]+(\\s+[a-zA-Z]+)*"))
+            return new ArrayList<>();
+
+        String[] queryTerms = query.split("\\s+");
+
+        lock.readLock().lock();
+        try {
+            if(positionalIndex == null)
+                throw new IllegalStateException("Positions are not indexed, call setPositions(true) before build()");
+
+            //equal relevance - alphabetical order of titles
+            TopKHeap topK = new TopKHeap(k, (docA, docB) -> getTitle(docA).compareTo(getTitle(docB)));
+            PositionalIndex.MatchConsumer consumer = (docId, titleMatches, bodyMatches) -> {
+                //positions of deleted documents stay until the next build
+                if(getTitle(docId) != null) topK.offer(docId, TITLE_WEIGHT * titleMatches + BODY_WEIGHT * bodyMatches);
+            };
+            if(distance < 0) positionalIndex.phrase(queryTerms, consumer);
+            else positionalIndex.proximity(queryTerms, distance, consumer);
+
+            return toHits(topK);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //under the read lock
+    private ArrayList<SearchHit> toHits(TopKHeap topK) {
+        float[] scores = new float[topK.size()];
+        int[] docIds = topK.drain(scores);
+
+        ArrayList<SearchHit> result = new ArrayList<>();
+        for (int i = 0; i < docIds.length; i++) {
+            result.add(new SearchHit(docIds[i], getTitle(docIds[i]), scores[i]));
+        }
+        return result;
+    }
+
+    private static ArrayList<String> toTitles(ArrayList<SearchHit> hits) {
         ArrayList<String> result = new ArrayList<>();
-        for (Float docRelevance : resultList.descendingKeySet()) {
-            for (String document : resultList.get(docRelevance)) {
-                if(result.size() == RESULT_SIZE) break;
-                result.add(document);
+        for (SearchHit hit : hits) {
+            result.add(hit.getTitle());
+        }
+        return result;
+    }
+
+    private static void addPostings(HashMap<String, ZonePostings> index, String term, ScoreAccumulator accumulator) {
+        ZonePostings postings = index.get(term);
+        if(postings == null) return;
+
+        for (int zone = 0; zone < postings.zonesCount(); zone++) {
+            postings.get(zone).addTo(accumulator, zone);
+        }
+    }
+
+    public int getDocumentsCount() {
+        return documents.size();
+    }
+
+    /**
+     * @return title of the document or null if it was deleted.
+     */
+    public String getTitle(int docId) {
+        if(isInSegment(docId)) return segmentDeleted.contains(docId) ? null : segment.getTitle(docId);
+
+        FictionBook document = documents.get(docId);
+        return document == null ? null : document.getTitle();
+    }
+
+    /**
+     * Writes the index as a binary segment that can be memory-mapped with {@link #open(Path)}.
+     */
+    public void save(Path path) throws IOException {
+        if(segment != null)
+            throw new IllegalStateException("Index is already backed by a segment");
+
+        merge();
+
+        lock.readLock().lock();
+        try {
+            ZoneIndexSegment.write(path, ZONE_WEIGHTS.length, documents, ZoneIndex::key, zoneIndex);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Whether the index was opened from a segment of exactly the .fb2 books of the directory,
+     * with the lengths and modification times they had when they were indexed.
+     * Added, removed, renamed and changed books all make it out of date.
+     */
+    public boolean isUpToDate(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".fb2"));
+        if(segment == null || files == null) return false;
+
+        HashMap<String, File> filesByKey = new HashMap<>();
+        for (File file : files) {
+            filesByKey.put(key(file), file);
+        }
+
+        int sourcesCount = 0;
+        for (int docId = 0; docId < segment.getDocumentsCount(); docId++) {
+            String sourcePath = segment.getSourcePath(docId);
+            if(sourcePath.isEmpty()) continue;
+
+            File file = filesByKey.get(sourcePath);
+            if(file == null || file.length() != segment.getSourceLength(docId)
+                    || file.lastModified() != segment.getSourceLastModified(docId))
+                return false;
+            sourcesCount++;
+        }
+        return sourcesCount == filesByKey.size();
+    }
+
+    /**
+     * Brings the index in line with the books of a directory after watch events were lost:
+     * deletes the documents whose file is gone and re-indexes only the new and the changed files
+     * (length or modification time differ from the indexed source, as in {@link #isUpToDate}).
+     */
+    void reconcile(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".fb2"));
+        if(files == null) return;
+
+        HashMap<String, File> filesByKey = new HashMap<>();
+        for (File file : files) {
+            filesByKey.put(key(file), file);
+        }
+
+        String dirKey = key(dir);
+        List<File> gone = new ArrayList<>();
+        List<File> changed = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<String, Integer> entry : docIds.entrySet()) {
+                //what is left in filesByKey afterwards is not indexed yet
+                File file = filesByKey.remove(entry.getKey());
+                int docId = entry.getValue();
+                if(file == null) {
+                    //books of other directories are not ours to drop
+                    if(dirKey.equals(new File(entry.getKey()).getParent())) gone.add(new File(entry.getKey()));
+                }
+                else if(isInSegment(docId)) {
+                    if(file.length() != segment.getSourceLength(docId)
+                            || file.lastModified() != segment.getSourceLastModified(docId))
+                        changed.add(file);
+                }
+                else {
+                    FictionBook document = documents.get(docId);
+                    if(file.length() != document.getFileLength() || file.lastModified() != document.getLastModified())
+                        changed.add(file);
+                }
             }
-            if(result.size() == RESULT_SIZE) break;
+        } finally {
+            lock.readLock().unlock();
         }
+        changed.addAll(filesByKey.values());
 
-        return result;
+        for (File file : gone) {
+            delete(file);
+        }
+        for (File file : changed) {
+            //still being written, the watcher gets its modify event later
+            if(file.length() == 0) continue;
+            try {
+                update(file);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     public void saveToFile(File file) {
@@ -123,39 +723,16 @@ public class ZoneIndex {
 
         for (String term : zoneIndex.keySet()) {
             sb.append(term);
-            for (Integer docId : zoneIndex.get(term).keySet()) {
-                TermWeight termWeight = zoneIndex.get(term).get(docId);
-                float weight = (termWeight.isInTitle() ? TITLE_WEIGHT : 0) + (termWeight.isInBody() ? BODY_WEIGHT : 0);
+            zoneIndex.get(term).forEach((docId, zoneFlags) -> {
+                float weight = 0;
+                for (int zone = 0; zone < ZONE_WEIGHTS.length; zone++) {
+                    if((zoneFlags & (1 << zone)) != 0) weight += ZONE_WEIGHTS[zone];
+                }
                 sb.append('|').append(docId).append(' ').append(weight);
-            }
+            });
             sb.append('\n');
         }
 
         return sb.toString();
     }
 }
-
-class TermWeight {
-    private boolean inTitle;
-    private boolean inBody;
-
-    public TermWeight() {
-
-    }
-
-    public boolean isInTitle() {
-        return inTitle;
-    }
-
-    public void setInTitle(boolean inTitle) {
-        this.inTitle = inTitle;
-    }
-
-    public boolean isInBody() {
-        return inBody;
-    }
-
-    public void setInBody(boolean inBody) {
-        this.inBody = inBody;
-    }
-}
@@ -0,0 +1,293 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Read-only, memory-mapped zone index segment.
+ * <p>
+ * Layout (big-endian, offsets are absolute file positions):
+ * <pre>
+ * header   : magic | version | zonesCount | docCount | termCount | titlesOffset | sourcesOffset | dictOffset | postingsOffset
+ * titles   : int[docCount + 1] byte offsets | UTF-8 title bytes
+ * sources  : long[docCount] file lengths | long[docCount] modification times | int[docCount + 1] byte offsets
+ *            | UTF-8 file path bytes (empty for a deleted document)
+ * dict     : int[termCount + 1] term byte offsets | int[termCount + 1] postings offsets | sorted term bytes
+ * postings : per term varint(df), then df x varint((docId - prevDocId) &lt;&lt; zonesCount | zoneFlags)
+ * </pre>
+ * Lookups and decoding use absolute reads only, so one mapped segment can be shared between threads.
+ */
+final class ZoneIndexSegment {
+    static final int MAGIC = 0x5A494458; // "ZIDX"
+    static final int VERSION = 3;
+
+    private static final int HEADER_SIZE = 9 * Integer.BYTES;
+
+    private final MappedByteBuffer buffer;
+    private final int zonesCount;
+    private final int docCount;
+    private final int termCount;
+    private final int titlesOffset;
+    private final int sourcesOffset;
+    private final int dictOffset;
+    private final int postingsOffset;
+
+    private ZoneIndexSegment(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if(buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a zone index segment");
+        if(buffer.getInt(4) != VERSION)
+            throw new IOException("Unsupported zone index segment version " + buffer.getInt(4));
+
+        zonesCount = buffer.getInt(8);
+        docCount = buffer.getInt(12);
+        termCount = buffer.getInt(16);
+        titlesOffset = buffer.getInt(20);
+        sourcesOffset = buffer.getInt(24);
+        dictOffset = buffer.getInt(28);
+        postingsOffset = buffer.getInt(32);
+    }
+
+    static ZoneIndexSegment open(Path path) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new ZoneIndexSegment(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Writes a segment of the documents (null for a deleted one) and their postings.
+     * @param sourcePaths the path stored for the file of a document.
+     */
+    static void write(Path path, int zonesCount, List<FictionBook> documents, Function<File, String> sourcePaths,
+                      Map<String, ZonePostings> index) throws IOException {
+        ArrayList<String> terms = new ArrayList<>(index.keySet());
+        Collections.sort(terms);
+
+        //titles and sources
+        int docCount = documents.size();
+        byte[][] titleBytes = new byte[docCount][];
+        byte[][] sourceBytes = new byte[docCount][];
+        int titlesSize = 0;
+        int sourcesSize = 0;
+        for (int docId = 0; docId < docCount; docId++) {
+            FictionBook document = documents.get(docId);
+            titleBytes[docId] = document == null ? new byte[0] : document.getTitle().getBytes(StandardCharsets.UTF_8);
+            sourceBytes[docId] = document == null ? new byte[0] : sourcePaths.apply(document.getFile()).getBytes(StandardCharsets.UTF_8);
+            titlesSize += titleBytes[docId].length;
+            sourcesSize += sourceBytes[docId].length;
+        }
+
+        //terms + postings
+        byte[][] termBytes = new byte[terms.size()][];
+        int termsSize = 0;
+        int[] postingsOffsets = new int[terms.size() + 1];
+        ByteArrayOutputStream postings = new ByteArrayOutputStream();
+        for (int termOrd = 0; termOrd < terms.size(); termOrd++) {
+            termBytes[termOrd] = terms.get(termOrd).getBytes(StandardCharsets.UTF_8);
+            termsSize += termBytes[termOrd].length;
+
+            ByteArrayOutputStream entries = new ByteArrayOutputStream();
+            int[] df = new int[1];
+            int[] prevDocId = new int[1];
+            index.get(terms.get(termOrd)).forEach((docId, zoneFlags) -> {
+                writeVarInt(entries, (docId - prevDocId[0]) << zonesCount | zoneFlags);
+                prevDocId[0] = docId;
+                df[0]++;
+            });
+
+            postingsOffsets[termOrd] = postings.size();
+            writeVarInt(postings, df[0]);
+            entries.writeTo(postings);
+        }
+        postingsOffsets[terms.size()] = postings.size();
+
+        int titlesOffset = HEADER_SIZE;
+        int sourcesOffset = titlesOffset + (docCount + 1) * Integer.BYTES + titlesSize;
+        int dictOffset = sourcesOffset + docCount * 2 * Long.BYTES + (docCount + 1) * Integer.BYTES + sourcesSize;
+        int postingsOffset = dictOffset + 2 * (terms.size() + 1) * Integer.BYTES + termsSize;
+
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(zonesCount);
+            out.writeInt(docCount);
+            out.writeInt(terms.size());
+            out.writeInt(titlesOffset);
+            out.writeInt(sourcesOffset);
+            out.writeInt(dictOffset);
+            out.writeInt(postingsOffset);
+
+            int offset = 0;
+            for (byte[] bytes : titleBytes) {
+                out.writeInt(offset);
+                offset += bytes.length;
+            }
+            out.writeInt(offset);
+            for (byte[] bytes : titleBytes) out.write(bytes);
+
+            for (FictionBook document : documents) out.writeLong(document == null ? -1 : document.getFileLength());
+            for (FictionBook document : documents) out.writeLong(document == null ? -1 : document.getLastModified());
+            offset = 0;
+            for (byte[] bytes : sourceBytes) {
+                out.writeInt(offset);
+                offset += bytes.length;
+            }
+            out.writeInt(offset);
+            for (byte[] bytes : sourceBytes) out.write(bytes);
+
+            offset = 0;
+            for (byte[] bytes : termBytes) {
+                out.writeInt(offset);
+                offset += bytes.length;
+            }
+            out.writeInt(offset);
+            for (int postingsOffsetOfTerm : postingsOffsets) out.writeInt(postingsOffsetOfTerm);
+            for (byte[] bytes : termBytes) out.write(bytes);
+
+            postings.writeTo(out);
+        }
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    int getZonesCount() {
+        return zonesCount;
+    }
+
+    int getDocumentsCount() {
+        return docCount;
+    }
+
+    int getTermsCount() {
+        return termCount;
+    }
+
+    String getTitle(int docId) {
+        int base = titlesOffset + (docCount + 1) * Integer.BYTES;
+        int start = buffer.getInt(titlesOffset + docId * Integer.BYTES);
+        int end = buffer.getInt(titlesOffset + (docId + 1) * Integer.BYTES);
+        return readString(base + start, end - start);
+    }
+
+    /**
+     * @return the path the document was read from, empty for a deleted document.
+     */
+    String getSourcePath(int docId) {
+        int base = sourcesOffset + docCount * 2 * Long.BYTES;
+        int start = buffer.getInt(base + docId * Integer.BYTES);
+        int end = buffer.getInt(base + (docId + 1) * Integer.BYTES);
+        return readString(base + (docCount + 1) * Integer.BYTES + start, end - start);
+    }
+
+    //length of the file when the document was read
+    long getSourceLength(int docId) {
+        return buffer.getLong(sourcesOffset + docId * Long.BYTES);
+    }
+
+    //modification time of the file when the document was read
+    long getSourceLastModified(int docId) {
+        return buffer.getLong(sourcesOffset + (docCount + docId) * Long.BYTES);
+    }
+
+    String getTerm(int termOrd) {
+        int base = termBytesOffset();
+        int start = buffer.getInt(dictOffset + termOrd * Integer.BYTES);
+        int end = buffer.getInt(dictOffset + (termOrd + 1) * Integer.BYTES);
+        return readString(base + start, end - start);
+    }
+
+    /**
+     * Binary search over the sorted term dictionary.
+     * @return term ordinal or -1 if the term is not in the segment.
+     */
+    int findTerm(String term) {
+        byte[] key = term.getBytes(StandardCharsets.UTF_8);
+        int base = termBytesOffset();
+
+        int lo = 0;
+        int hi = termCount - 1;
+        while(lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int start = buffer.getInt(dictOffset + mid * Integer.BYTES);
+            int end = buffer.getInt(dictOffset + (mid + 1) * Integer.BYTES);
+
+            int cmp = compare(base + start, end - start, key);
+            if(cmp < 0) lo = mid + 1;
+            else if(cmp > 0) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes the posting list of a term straight from the mapped pages.
+     */
+    void forEachPosting(int termOrd, ZonePostings.PostingConsumer consumer) {
+        int pos = postingsOffset + buffer.getInt(dictOffset + (termCount + 1 + termOrd) * Integer.BYTES);
+
+        long value = readVarInt(pos);
+        int df = (int)value;
+        pos += (int)(value >>> 32);
+
+        int docId = 0;
+        for (int i = 0; i < df; i++) {
+            value = readVarInt(pos);
+            int entry = (int)value;
+            pos += (int)(value >>> 32);
+
+            docId += entry >>> zonesCount;
+            consumer.accept(docId, entry & ((1 << zonesCount) - 1));
+        }
+    }
+
+    //low 32 bits - value, high 32 bits - encoded length
+    private long readVarInt(int pos) {
+        int value = 0;
+        int shift = 0;
+        int length = 0;
+        byte b;
+        do {
+            b = buffer.get(pos + length++);
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while((b & 0x80) != 0);
+        return ((long)length << 32) | (value & 0xFFFFFFFFL);
+    }
+
+    private int termBytesOffset() {
+        return dictOffset + 2 * (termCount + 1) * Integer.BYTES;
+    }
+
+    private int compare(int pos, int length, byte[] key) {
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (buffer.get(pos + i) & 0xFF) - (key[i] & 0xFF);
+            if(cmp != 0) return cmp;
+        }
+        return length - key.length;
+    }
+
+    private String readString(int pos, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(pos, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Postings of one term: a document bitmap per zone.
+ */
+final class ZonePostings {
+    private final DocBitmap[] zones;
+
+    ZonePostings(int zonesCount) {
+        zones = new DocBitmap[zonesCount];
+        for (int zone = 0; zone < zonesCount; zone++) {
+            zones[zone] = new DocBitmap();
+        }
+    }
+
+    void add(int zone, int docId) {
+        zones[zone].add(docId);
+    }
+
+    DocBitmap get(int zone) {
+        return zones[zone];
+    }
+
+    int zonesCount() {
+        return zones.length;
+    }
+
+    /**
+     * Visits documents containing the term in any zone, in ascending order.
+     * Bit z of the flags is set when the document has the term in zone z.
+     */
+    void forEach(PostingConsumer consumer) {
+        DocBitmap all = zones[0];
+        for (int zone = 1; zone < zones.length; zone++) {
+            all = DocBitmap.or(all, zones[zone]);
+        }
+
+        all.forEach(docId -> {
+            int flags = 0;
+            for (int zone = 0; zone < zones.length; zone++) {
+                if(zones[zone].contains(docId)) flags |= 1 << zone;
+            }
+            consumer.accept(docId, flags);
+        });
+    }
+
+    /**
+     * Adds the documents of another postings of the same term.
+     */
+    void merge(ZonePostings other) {
+        for (int zone = 0; zone < zones.length; zone++) {
+            if(!other.zones[zone].isEmpty())
+                zones[zone] = DocBitmap.or(zones[zone], other.zones[zone]);
+        }
+    }
+
+    /**
+     * New postings with the documents of both, the arguments are left untouched.
+     */
+    static ZonePostings union(ZonePostings a, ZonePostings b) {
+        ZonePostings result = new ZonePostings(a.zones.length);
+        for (int zone = 0; zone < a.zones.length; zone++) {
+            result.zones[zone] = DocBitmap.or(a.zones[zone], b.zones[zone]);
+        }
+        return result;
+    }
+
+    /**
+     * New postings without the given documents (this postings if none of them is present).
+     */
+    ZonePostings without(DocBitmap docs) {
+        ZonePostings result = null;
+        for (int zone = 0; zone < zones.length; zone++) {
+            DocBitmap remaining = DocBitmap.andNot(zones[zone], docs);
+            if(remaining.cardinality() == zones[zone].cardinality()) continue;
+
+            if(result == null) {
+                result = new ZonePostings(zones.length);
+                System.arraycopy(zones, 0, result.zones, 0, zones.length);
+            }
+            result.zones[zone] = remaining;
+        }
+        return result == null ? this : result;
+    }
+
+    boolean isEmpty() {
+        for (DocBitmap zone : zones) {
+            if(!zone.isEmpty()) return false;
+        }
+        return true;
+    }
+
+    void trim() {
+        for (DocBitmap zone : zones) {
+            zone.trim();
+        }
+    }
+
+    long sizeInBytes() {
+        long size = 0;
+        for (DocBitmap zone : zones) {
+            size += zone.sizeInBytes();
+        }
+        return size;
+    }
+
+    interface PostingConsumer {
+        void accept(int docId, int zoneFlags);
+    }
+}
@@ -0,0 +1,142 @@
+import com.sun.management.ThreadMXBean;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Small benchmark runner for the modules' Benchmarks (there is no build system here to pull JMH in).
+ * <p>
+ * A benchmark runs warmup iterations, then measured iterations of a fixed number of operations, found
+ * in the first warmup iteration so that one iteration takes about {@code bench.time} ms. The report has
+ * the mean time per operation with the standard deviation over the iterations, and like JMH's gc profiler
+ * the bytes allocated per operation (by all threads alive at the end) and the collections during the
+ * measured iterations.
+ * Results of operations go to a volatile sink so the JIT can't drop the work.
+ * <p>
+ * Settings (system properties): {@code bench.warmup} (iterations, default 5), {@code bench.iterations}
+ * (default 10), {@code bench.time} (ms per iteration, default 500). The first program argument, if any,
+ * keeps only the benchmarks whose name contains it.
+ */
+final class Benchmark {
+    static final int WARMUP = Integer.getInteger("bench.warmup", 5);
+    static final int ITERATIONS = Integer.getInteger("bench.iterations", 10);
+    static final long ITERATION_NANOS = Long.getLong("bench.time", 500) * 1_000_000;
+
+    private static final ThreadMXBean THREADS = (ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    private static volatile Object sink;
+
+    private final String filter;
+
+    Benchmark(String[] args) {
+        filter = args.length > 0 ? args[0] : "";
+        if(THREADS.isThreadAllocatedMemorySupported()) THREADS.setThreadAllocatedMemoryEnabled(true);
+
+        System.out.printf(Locale.ROOT, "%s, %d warmup + %d iterations of %d ms%n",
+                Runtime.version(), WARMUP, ITERATIONS, ITERATION_NANOS / 1_000_000);
+        System.out.printf(Locale.ROOT, "%-48s %14s %12s %14s %10s%n", "Benchmark", "time/op", "error", "alloc/op", "gc");
+    }
+
+    /**
+     * Returns whether any of the benchmarks passes the filter.
+     */
+    boolean enabled(String... names) {
+        for (String name : names) {
+            if(name.contains(filter)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Runs a benchmark unless it is filtered out.
+     */
+    void run(String name, Operation operation) throws Exception {
+        run(name, WARMUP, ITERATIONS, operation);
+    }
+
+    /**
+     * Runs a benchmark with its own iteration counts, for operations taking seconds.
+     */
+    void run(String name, int warmup, int iterations, Operation operation) throws Exception {
+        if(!enabled(name)) return;
+
+        //operations per iteration
+        long ops = 0;
+        long start = System.nanoTime();
+        do {
+            sink = operation.run();
+            ops++;
+        } while(System.nanoTime() - start < ITERATION_NANOS);
+
+        for (int i = 1; i < warmup; i++) {
+            iteration(operation, ops);
+        }
+
+        double[] times = new double[iterations];
+        long allocated = allocatedBytes();
+        long[] gc = collections();
+        for (int i = 0; i < iterations; i++) {
+            times[i] = (double)iteration(operation, ops) / ops;
+        }
+        allocated = allocatedBytes() - allocated;
+        long[] gcAfter = collections();
+
+        double mean = Arrays.stream(times).average().orElse(0);
+        double variance = 0;
+        for (double time : times) {
+            variance += (time - mean) * (time - mean);
+        }
+        double error = times.length > 1 ? Math.sqrt(variance / (times.length - 1)) : 0;
+
+        String line = String.format(Locale.ROOT, "%-48s %14s %12s %12.0f B %4d (%d ms)",
+                name, formatTime(mean), "+- " + formatTime(error), (double)allocated / (ops * iterations),
+                gcAfter[0] - gc[0], gcAfter[1] - gc[1]);
+        System.out.println(line);
+    }
+
+    private static long iteration(Operation operation, long ops) throws Exception {
+        long start = System.nanoTime();
+        for (long op = 0; op < ops; op++) {
+            sink = operation.run();
+        }
+        return System.nanoTime() - start;
+    }
+
+    //bytes allocated by all live threads so far, -1 per thread the JVM can't tell
+    private static long allocatedBytes() {
+        if(!THREADS.isThreadAllocatedMemorySupported()) return 0;
+
+        long total = 0;
+        for (long bytes : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+            if(bytes > 0) total += bytes;
+        }
+        return total;
+    }
+
+    //{count, time in ms} of all collectors
+    private static long[] collections() {
+        long[] total = new long[2];
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total[0] += Math.max(collector.getCollectionCount(), 0);
+            total[1] += Math.max(collector.getCollectionTime(), 0);
+        }
+        return total;
+    }
+
+    private static String formatTime(double nanos) {
+        if(nanos >= 1e9) return String.format(Locale.ROOT, "%.3f s", nanos / 1e9);
+        if(nanos >= 1e6) return String.format(Locale.ROOT, "%.3f ms", nanos / 1e6);
+        if(nanos >= 1e3) return String.format(Locale.ROOT, "%.3f us", nanos / 1e3);
+        return String.format(Locale.ROOT, "%.1f ns", nanos);
+    }
+
+    interface Operation {
+        /**
+         * Does the measured work once.
+         * @return anything computed, kept from dead code elimination.
+         */
+        Object run() throws Exception;
+    }
+}
@@ -0,0 +1,215 @@
+import bm25.BM25;
+import bm25.BM25Norms;
+import com.kursx.parser.fb2.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Objects;
+import java.util.Random;
+
+/**
+ * Benchmarks of the BM25 clustering: BM25 scoring (per posting and batched), tokenization and vector
+ * similarity, then build and the four kinds of queries on the bundled books and on synthetic corpora.
+ * Run from the module directory:
+ * <pre>
+ * java -cp out:fb2parser.jar -Dbench.time=500 Benchmarks [name filter]
+ * </pre>
+ */
+public class Benchmarks {
+    private static final long SEED = 42;
+    private static final int[] SYNTHETIC_BOOKS = {100, 400};
+    private static final String[] QUERIES = {"zombie war", "the", "tunnel people", "red hammer", "love and death"};
+    //postings scored per operation in the BM25 benchmarks
+    private static final int POSTINGS = 4096;
+
+    public static void main(String[] args) throws Exception {
+        Benchmark benchmark = new Benchmark(args);
+
+        File[] files = Objects.requireNonNull(new File("src/documents").listFiles());
+
+        //micro, BM25 over one posting list
+        Random random = new Random(SEED);
+        BM25 bm25 = new BM25();
+        int N = 100_000;
+        int[] docIds = new int[POSTINGS];
+        int[] freqs = new int[POSTINGS];
+        double[] normalizedFreqs = new double[POSTINGS];
+        int[] docSizes = new int[N];
+        byte[] docNorms = new byte[N];
+        for (int docId = 0; docId < N; docId++) {
+            docSizes[docId] = 50 + random.nextInt(5000);
+            docNorms[docId] = BM25Norms.encode(docSizes[docId]);
+        }
+        for (int i = 0; i < POSTINGS; i++) {
+            docIds[i] = i * (N / POSTINGS);
+            freqs[i] = 1 + random.nextInt(20);
+            normalizedFreqs[i] = 1 + Math.log(freqs[i]);
+        }
+        int[] postingSizes = new int[POSTINGS];
+        for (int i = 0; i < POSTINGS; i++) {
+            postingSizes[i] = docSizes[docIds[i]];
+        }
+        double avgDocSize = 2525;
+        double idf = bm25.idf(N, POSTINGS);
+        BM25Norms norms = bm25.norms(avgDocSize);
+        double[] scores = new double[POSTINGS];
+        checkBatch(bm25, idf, freqs, docIds, docSizes, docNorms, norms, avgDocSize, N);
+
+        benchmark.run("bm25.score", () -> {
+            double sum = 0;
+            for (int i = 0; i < POSTINGS; i++) {
+                sum += bm25.score(freqs[i], postingSizes[i], avgDocSize, N, POSTINGS);
+            }
+            return sum;
+        });
+        benchmark.run("bm25.score.batch", () -> {
+            bm25.score(idf, normalizedFreqs, scores, 0, POSTINGS);
+            return scores;
+        });
+        benchmark.run("bm25.score.batch.lengths", () -> {
+            bm25.score(idf, freqs, postingSizes, avgDocSize, scores, 0, POSTINGS);
+            return scores;
+        });
+        benchmark.run("bm25.score.batch.norms", () -> {
+            bm25.score(idf, docIds, freqs, docNorms, norms, scores, 0, POSTINGS);
+            return scores;
+        });
+
+        //micro, tokenization and similarity
+        ArrayList<String> texts = new ArrayList<>();
+        for (File file : files) {
+            collectTexts(new FictionBook(file), texts);
+        }
+        Tokenizer tokenizer = new Tokenizer();
+        benchmark.run("tokenize.books", () -> {
+            int terms = 0;
+            for (String text : texts) {
+                tokenizer.reset(text);
+                while(tokenizer.next() != null) terms++;
+            }
+            return terms;
+        });
+
+        DocumentVector[] merge = {vector(random, 300), vector(random, 300)};
+        benchmark.run("similarity.merge.300x300", () -> merge[0].similarity(merge[1]));
+        DocumentVector[] gallop = {vector(random, 30), vector(random, 5000)};
+        benchmark.run("similarity.gallop.30x5000", () -> gallop[0].similarity(gallop[1]));
+
+        //macro, bundled books
+        macro(benchmark, "books", files, QUERIES);
+
+        //macro, synthetic books
+        for (int count : SYNTHETIC_BOOKS) {
+            String name = "synthetic" + count;
+            if(!benchmark.enabled(macroNames(name))) continue;
+
+            SyntheticCorpus corpus = new SyntheticCorpus(SEED);
+            Path dir = Files.createTempDirectory("bench-books");
+            corpus.writeFictionBooks(dir, count, 20_000);
+            String[] queries = new String[QUERIES.length];
+            for (int i = 0; i < queries.length; i++) {
+                queries[i] = corpus.query(2);
+            }
+
+            File[] books = Objects.requireNonNull(dir.toFile().listFiles());
+            macro(benchmark, name, books, queries);
+
+            for (File book : books) book.delete();
+            dir.toFile().delete();
+        }
+    }
+
+    /**
+     * The batch overloads against the scalar score(freq, docSize, avgDocSize, N, n): the same scores with
+     * int lengths, with byte norms the scores of the decoded lengths (the encoding rounds long documents down).
+     */
+    private static void checkBatch(BM25 bm25, double idf, int[] freqs, int[] docIds, int[] docSizes, byte[] docNorms,
+                                   BM25Norms norms, double avgDocSize, int N) {
+        int[] postingSizes = new int[POSTINGS];
+        for (int i = 0; i < POSTINGS; i++) {
+            postingSizes[i] = docSizes[docIds[i]];
+        }
+
+        double[] lengths = new double[POSTINGS];
+        double[] encoded = new double[POSTINGS];
+        bm25.score(idf, freqs, postingSizes, avgDocSize, lengths, 0, POSTINGS);
+        bm25.score(idf, docIds, freqs, docNorms, norms, encoded, 0, POSTINGS);
+
+        double maxError = 0;
+        for (int i = 0; i < POSTINGS; i++) {
+            double exact = bm25.score(freqs[i], postingSizes[i], avgDocSize, N, POSTINGS);
+            double decoded = bm25.score(freqs[i], BM25Norms.decode(docNorms[docIds[i]]), avgDocSize, N, POSTINGS);
+            if(lengths[i] != exact)
+                throw new IllegalStateException("Batch score " + lengths[i] + " != " + exact + " at " + i);
+            if(encoded[i] != decoded)
+                throw new IllegalStateException("Batch score with norms " + encoded[i] + " != " + decoded + " at " + i);
+            maxError = Math.max(maxError, Math.abs(encoded[i] - exact) / exact);
+        }
+        System.out.printf("bm25 batch scores match the scalar ones, byte norms within %.2f%%%n", maxError * 100);
+    }
+
+    private static void macro(Benchmark benchmark, String corpus, File[] files, String[] queries) throws Exception {
+        if(!benchmark.enabled(macroNames(corpus))) return;
+
+        Clustering clustering = new Clustering();
+        clustering.setSeed(SEED);
+        clustering.setQueryCache(0, 0);
+        for (File file : files) {
+            clustering.addDocument(file);
+        }
+
+        benchmark.run("build." + corpus, 2, 5, () -> {
+            clustering.build();
+            return clustering;
+        });
+
+        clustering.build();
+        int[] next = {0};
+        benchmark.run("query.clusters." + corpus, () -> clustering.findWithQuery(queries[next[0]++ % queries.length]));
+        benchmark.run("query.exact." + corpus, () -> clustering.findWithQueryExact(queries[next[0]++ % queries.length]));
+        benchmark.run("query.impact." + corpus, () -> clustering.findWithQueryImpact(queries[next[0]++ % queries.length]));
+        benchmark.run("query.fields." + corpus, () -> clustering.findWithQueryFields(queries[next[0]++ % queries.length]));
+    }
+
+    private static String[] macroNames(String corpus) {
+        return new String[] {"build." + corpus, "query.clusters." + corpus, "query.exact." + corpus,
+                "query.impact." + corpus, "query.fields." + corpus};
+    }
+
+    //term ids spread over a vocabulary of 100 000 terms
+    private static DocumentVector vector(Random random, int size) {
+        DocumentVector vector = new DocumentVector();
+        random.ints(0, 100_000).distinct().limit(size).forEach(termId -> vector.put(termId, 1 + random.nextDouble()));
+        vector.computeLength();
+        return vector;
+    }
+
+    //the texts Clustering indexes
+    private static void collectTexts(FictionBook book, ArrayList<String> texts) {
+        texts.add(book.getTitle());
+        for (Section section : book.getBody().getSections()) {
+            collectTexts(section, texts);
+        }
+    }
+
+    private static void collectTexts(Section section, ArrayList<String> texts) {
+        if(section.getAnnotation() != null) {
+            for (Element element : section.getAnnotation().getAnnotations()) {
+                texts.add(element.getText());
+            }
+        }
+        for (Title title : section.getTitles()) {
+            for (P paragraph : title.getParagraphs()) {
+                texts.add(paragraph.getText());
+            }
+        }
+        for (Element element : section.getElements()) {
+            texts.add(element.getText());
+        }
+        for (Section child : section.getSections()) {
+            collectTexts(child, texts);
+        }
+    }
+}
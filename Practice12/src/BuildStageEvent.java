@@ -0,0 +1,30 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Event;
+
+/**
+ * JFR event of one stage of building the index: parsing a book, tokenizing, the dictionary, vectors or clusters.
+ * Recorded with "jcmd &lt;pid&gt; JFR.start" or -XX:StartFlightRecording, costs next to nothing otherwise.
+ */
+@Name("clustering.BuildStage")
+@Label("Build Stage")
+@Category("Clustering")
+@Description("One stage of building the clustered index")
+final class BuildStageEvent extends Event {
+    @Label("Stage")
+    String stage;
+
+    @Label("Documents")
+    int documents;
+
+    @Label("Terms")
+    int terms;
+
+    @Label("Heap Size")
+    @Description("Estimated heap size of what the stage built")
+    @DataAmount
+    long heapBytes;
+}
@@ -0,0 +1,147 @@
+import bm25.BM25Index;
+import bm25.ImpactIndex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * A built index as the queries see it: titles, sources, dictionary, vectors, clusters and the BM25 indexes.
+ * Nothing in it changes once it is published, so any number of threads read it without locks
+ * while the next one is being built.
+ */
+final class IndexSnapshot {
+    //structures of the heap usage, and the key of their total
+    static final String[] STRUCTURES = {"titles", "sources", "dictionary", "vectors", "clusters", "bm25", "impact", "bm25f"};
+    static final String TOTAL = "total";
+
+    //heap size estimates of a 64-bit JVM with compressed references
+    static final int OBJECT_HEADER = 12;
+    static final int ARRAY_HEADER = 16;
+    static final int REFERENCE = 4;
+    //boxed id, HashMap entry, TreeMap entry, TreeSet with its TreeMap, unmodifiable view
+    private static final int BOXED_INT = 16;
+    private static final int HASH_ENTRY = 32;
+    private static final int TREE_ENTRY = 40;
+    private static final int TREE_SET = 64;
+    private static final int VIEW = 24;
+
+    static final IndexSnapshot EMPTY = new IndexSnapshot(0, new String[0], new Clustering.Source[0], TermDictionary.build(new ArrayList<>()),
+            new ArrayList<>(), new HashMap<>(), new BM25Index(0), new ImpactIndex(new BM25Index(0), 0), new BM25Index(0));
+
+    //seed the leaders were selected with
+    final long seed;
+    //documents' titles
+    private final String[] titles;
+    //documents' files
+    final Clustering.Source[] sources;
+    //term ids
+    final TermDictionary dictionary;
+    //documents' vectors
+    final List<DocumentVector> vectors;
+    //leaders documents' ids
+    final SortedSet<Integer> leaders;
+    //clusters (leader -> followers)
+    final Map<Integer, SortedSet<Integer>> clusters;
+    //term id -> BM25 weights of the documents (exact top-k search)
+    final BM25Index bm25Index;
+    //the same weights quantized to 8 bits, postings in descending impact order
+    final ImpactIndex impactIndex;
+    //term id -> BM25F weights of the documents (field-aware search)
+    final BM25Index bm25fIndex;
+    //estimated heap bytes per structure and their total
+    final Map<String, Long> heapUsage;
+
+    //takes the built structures over, nobody else may change them afterwards
+    IndexSnapshot(long seed, String[] titles, Clustering.Source[] sources, TermDictionary dictionary, List<DocumentVector> vectors,
+                  HashMap<Integer, SortedSet<Integer>> clusters,
+                  BM25Index bm25Index, ImpactIndex impactIndex, BM25Index bm25fIndex) {
+        this.seed = seed;
+        this.titles = titles;
+        this.sources = sources;
+        this.dictionary = dictionary;
+        this.vectors = Collections.unmodifiableList(vectors);
+
+        //in place, the map keeps its iteration order
+        clusters.replaceAll((leaderId, cluster) -> Collections.unmodifiableSortedSet(cluster));
+        this.clusters = Collections.unmodifiableMap(clusters);
+        this.leaders = Collections.unmodifiableSortedSet(new TreeSet<>(clusters.keySet()));
+
+        this.bm25Index = bm25Index;
+        this.impactIndex = impactIndex;
+        this.bm25fIndex = bm25fIndex;
+
+        //a mapped dictionary is not on the heap
+        LinkedHashMap<String, Long> heapUsage = new LinkedHashMap<>();
+        heapUsage.put("titles", titlesBytes(titles));
+        heapUsage.put("sources", sourcesBytes(sources));
+        heapUsage.put("dictionary", dictionary.isOnHeap() ? dictionary.sizeInBytes() : 0);
+        heapUsage.put("vectors", vectorsBytes(vectors));
+        heapUsage.put("clusters", clustersBytes(this.clusters) + TREE_SET + (long)leaders.size() * TREE_ENTRY);
+        heapUsage.put("bm25", bm25Index.sizeInBytes());
+        heapUsage.put("impact", impactIndex.sizeInBytes());
+        heapUsage.put("bm25f", bm25fIndex.sizeInBytes());
+        heapUsage.put(TOTAL, heapUsage.values().stream().mapToLong(Long::longValue).sum());
+        this.heapUsage = Collections.unmodifiableMap(heapUsage);
+    }
+
+    String title(int docId) {
+        return titles[docId];
+    }
+
+    static long titlesBytes(String[] titles) {
+        long bytes = arrayBytes(titles.length, REFERENCE);
+        for (String title : titles) {
+            if(title != null) bytes += stringBytes(title);
+        }
+        return bytes;
+    }
+
+    static long sourcesBytes(Clustering.Source[] sources) {
+        long bytes = arrayBytes(sources.length, REFERENCE);
+        for (Clustering.Source source : sources) {
+            bytes += objectBytes(REFERENCE + 16) + stringBytes(source.path);
+        }
+        return bytes;
+    }
+
+    static long stringBytes(String s) {
+        //compact strings: a byte per char unless one of them is beyond Latin-1
+        boolean latin1 = s.chars().allMatch(c -> c < 256);
+        return objectBytes(REFERENCE + 8) + arrayBytes(s.length(), latin1 ? 1 : 2);
+    }
+
+    static long vectorsBytes(List<DocumentVector> vectors) {
+        long bytes = arrayBytes(vectors.size(), REFERENCE);
+        for (DocumentVector vector : vectors) {
+            bytes += vector.sizeInBytes();
+        }
+        return bytes;
+    }
+
+    static long clustersBytes(Map<Integer, SortedSet<Integer>> clusters) {
+        long bytes = arrayBytes(Integer.highestOneBit(Math.max(1, clusters.size() * 4 / 3)) * 2L, REFERENCE);
+        for (SortedSet<Integer> cluster : clusters.values()) {
+            bytes += HASH_ENTRY + BOXED_INT + VIEW + TREE_SET + (long)cluster.size() * (TREE_ENTRY + BOXED_INT);
+        }
+        return bytes;
+    }
+
+    static long objectBytes(long fieldsBytes) {
+        return align(OBJECT_HEADER + fieldsBytes);
+    }
+
+    static long arrayBytes(long length, int elementBytes) {
+        return align(ARRAY_HEADER + length * elementBytes);
+    }
+
+    //objects take multiples of 8 bytes
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+}
@@ -1,23 +1,55 @@
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Objects;
 import java.util.Scanner;
 
 public class Main {
+    //requests in progress get this long to finish on shutdown
+    private static final int SHUTDOWN_GRACE_SECONDS = 5;
 
     public static void main(String[] args) {
-        Clustering clusterIndex = new Clustering();
         File dir = new File("src/documents");
+        Path snapshotFile = Path.of("src/output/clustering.bin");
 
-        try {
-            for (File file : Objects.requireNonNull(dir.listFiles()))
-                clusterIndex.addDocument(file);
-        } catch (Exception e) {
-            e.printStackTrace();
+        Clustering clusterIndex = null;
+        if(Files.exists(snapshotFile)) {
+            try {
+                clusterIndex = Clustering.load(snapshotFile);
+                //books added, removed, renamed or changed since the snapshot was written
+                if(!clusterIndex.isUpToDate(dir)) clusterIndex = null;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if(clusterIndex == null) {
+            clusterIndex = new Clustering();
+            try {
+                for (File file : Objects.requireNonNull(dir.listFiles()))
+                    clusterIndex.addDocument(file);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+
+            clusterIndex.build();
+            clusterIndex.saveToFile(new File("src/output/clusters.txt"));
+
+            try {
+                Files.createDirectories(snapshotFile.getParent());
+                clusterIndex.save(snapshotFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
 
-        clusterIndex.build();
-        clusterIndex.saveToFile(new File("src/output/clusters.txt"));
+        //--serve [port] - HTTP queries instead of the console
+        if(args.length > 0 && args[0].equals("--serve")) {
+            serve(clusterIndex, args.length > 1 ? Integer.parseInt(args[1]) : QueryServer.DEFAULT_PORT);
+            return;
+        }
 
         System.out.println("Clustered Index Testing\n-----");
         Scanner sc = new Scanner(System.in);
@@ -33,4 +65,24 @@ public class Main {
             ans = Integer.parseInt(sc.nextLine());
         } while(ans != 0);
     }
+
+    private static void serve(Clustering clusterIndex, int port) {
+        try {
+            QueryServer server = new QueryServer(port);
+            server.addEngine("cluster", clusterIndex::findHits);
+            server.addEngine("exact", clusterIndex::findHitsExact);
+            server.addEngine("impact", clusterIndex::findHitsImpact);
+            server.addEngine("fields", clusterIndex::findHitsFields);
+            server.setMetrics(clusterIndex.getMetrics());
+            server.start();
+
+            //Ctrl+C stops the server gracefully
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(SHUTDOWN_GRACE_SECONDS)));
+            System.out.println("Serving http://localhost:" + server.getPort() + "/search?q=...&k=...&engine=cluster|exact|impact|fields"
+                    + (server.isVirtualThreads() ? " on virtual threads" : ""));
+            System.out.println("Metrics at http://localhost:" + server.getPort() + "/metrics");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 }
@@ -0,0 +1,169 @@
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of counters, gauges and latency histograms, dumped in the Prometheus text format.
+ * <p>
+ * A series is named like "clustering_queries_total" or, with labels, "clustering_build_stage_seconds{stage=\"vectors\"}".
+ * Counters and histograms add up in striped cells, so concurrent queries do not contend on them;
+ * gauges are read when the registry is dumped. While the registry is disabled recording only reads a flag;
+ * -Dmetrics.enabled=false starts it disabled.
+ */
+public class Metrics {
+    //histogram buckets: up to 1 us, 2 us, 4 us ... 2^(BUCKETS - 1) us (about 34 s), then the rest
+    static final int BUCKETS = 26;
+
+    private volatile boolean enabled = Boolean.parseBoolean(System.getProperty("metrics.enabled", "true"));
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Disabled, nothing is recorded and the values recorded so far are kept.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Start time for {@link #record(String, long)}, 0 while disabled.
+     */
+    long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    void increment(String name) {
+        add(name, 1);
+    }
+
+    void add(String name, long value) {
+        if(!enabled) return;
+
+        LongAdder counter = counters.get(name);
+        if(counter == null) counter = counters.computeIfAbsent(name, n -> new LongAdder());
+        counter.add(value);
+    }
+
+    /**
+     * Records the time since start, got from {@link #start()}, in the histogram.
+     */
+    void record(String name, long start) {
+        if(!enabled || start == 0) return;
+
+        long nanos = System.nanoTime() - start;
+        Histogram histogram = histograms.get(name);
+        if(histogram == null) histogram = histograms.computeIfAbsent(name, n -> new Histogram());
+        histogram.record(nanos);
+    }
+
+    /**
+     * Registers a value read at every dump, replaces the previous one of the name.
+     */
+    void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public long getCount(String name) {
+        LongAdder counter = counters.get(name);
+        if(counter != null) return counter.sum();
+
+        Histogram histogram = histograms.get(name);
+        return histogram != null ? histogram.count.sum() : 0;
+    }
+
+    /**
+     * All series in the Prometheus text format, sorted by name.
+     */
+    public String scrape() {
+        StringBuilder sb = new StringBuilder();
+
+        String type = null;
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+            type = appendType(sb, type, entry.getKey(), "counter");
+            sb.append(entry.getKey()).append(' ').append(entry.getValue().sum()).append('\n');
+        }
+
+        type = null;
+        for (Map.Entry<String, LongSupplier> entry : new TreeMap<>(gauges).entrySet()) {
+            type = appendType(sb, type, entry.getKey(), "gauge");
+            sb.append(entry.getKey()).append(' ').append(entry.getValue().getAsLong()).append('\n');
+        }
+
+        type = null;
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            type = appendType(sb, type, entry.getKey(), "histogram");
+            entry.getValue().appendTo(sb, baseName(entry.getKey()), labels(entry.getKey()));
+        }
+
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return scrape();
+    }
+
+    //"# TYPE" line once per metric name, series of one name are next to each other
+    private static String appendType(StringBuilder sb, String previous, String series, String type) {
+        String name = baseName(series);
+        if(!name.equals(previous))
+            sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return name;
+    }
+
+    private static String baseName(String series) {
+        int brace = series.indexOf('{');
+        return brace >= 0 ? series.substring(0, brace) : series;
+    }
+
+    //labels without the braces, "" if none
+    private static String labels(String series) {
+        int brace = series.indexOf('{');
+        return brace >= 0 ? series.substring(brace + 1, series.length() - 1) : "";
+    }
+
+    private static class Histogram {
+        //the last bucket has no upper bound
+        private final LongAdder[] buckets = new LongAdder[BUCKETS + 1];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        void record(long nanos) {
+            long micros = Math.max(1, (nanos + 999) / 1000);
+            //the smallest i with micros <= 2^i
+            int bucket = Math.min(BUCKETS, 64 - Long.numberOfLeadingZeros(micros - 1));
+            buckets[bucket].increment();
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        //cumulative buckets, bounds in seconds
+        void appendTo(StringBuilder sb, String name, String labels) {
+            String prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                String bound = i < BUCKETS ? BigDecimal.valueOf(1L << i, 6).toPlainString() : "+Inf";
+                sb.append(name).append("_bucket").append(prefix).append("le=\"").append(bound).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+
+            String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+            sb.append(name).append("_sum").append(suffix).append(' ')
+                    .append(BigDecimal.valueOf(sumNanos.sum(), 9).toPlainString()).append('\n');
+            sb.append(name).append("_count").append(suffix).append(' ').append(cumulative).append('\n');
+        }
+    }
+}
@@ -122,7 +122,20 @@ public class BM25 {
     public double score(int termFreq, int docSize, double avgDocSize, int titleTermFreq,
                         int titleSize, double avgTitleSize, int anchorTermFreq, int anchorSize,
                         double avgAnchorSize, long N, long n) {
-        if (termFreq <= 0) return 0.0;
+        return score(termFreq, docSize, avgDocSize, titleTermFreq, titleSize, avgTitleSize,
+                anchorTermFreq, anchorSize, avgAnchorSize, idf(N, n));
+    }
+
+    /**
+     * Same as {@link #score(int, int, double, int, int, double, int, int, double, long, long)}
+     * with the idf of the term computed once for all its postings.
+     * @param idf the idf of the term.
+     * @return the relevance score.
+     */
+    public double score(int termFreq, int docSize, double avgDocSize, int titleTermFreq,
+                        int titleSize, double avgTitleSize, int anchorTermFreq, int anchorSize,
+                        double avgAnchorSize, double idf) {
+        if (termFreq <= 0 && titleTermFreq <= 0 && anchorTermFreq <= 0) return 0.0;
 
         // BM25F parameters
         final double kf = 4.9; // k1 in BM25F
@@ -133,7 +146,11 @@ public class BM25 {
         final double wBody = 1.0;
         final double wAnchor = 11.5;
 
-        double tf = wBody * termFreq / (1.0 + bBody * (docSize / avgDocSize - 1.0));
+        double tf = 0.0;
+
+        if (termFreq > 0) {
+            tf += wBody * termFreq / (1.0 + bBody * (docSize / avgDocSize - 1.0));
+        }
 
         if (titleTermFreq > 0) {
             tf += wTitle * titleTermFreq / (1.0 + bTitle * (titleSize / avgTitleSize - 1.0));
@@ -144,7 +161,6 @@ public class BM25 {
         }
 
         tf = tf / (kf + tf);
-        double idf = Math.log((N - n + 0.5) / (n + 0.5) + 1);
 
         return (tf + delta) * idf;
     }
@@ -160,7 +176,7 @@ public class BM25 {
         if (freq <= 0) return 0.0;
 
         double tf = (k1 + 1) * freq / (freq + k1);
-        double idf = Math.log((N - n + 0.5) / (n + 0.5) + 1);
+        double idf = idf(N, n);
 
         return (tf + delta) * idf;
     }
@@ -178,7 +194,7 @@ public class BM25 {
         if (freq <= 0) return 0.0;
 
         double tf = freq * (k1 + 1) / (freq + k1 * (1 - b + b * docSize / avgDocSize));
-        double idf = Math.log((N - n + 0.5) / (n + 0.5) + 1);
+        double idf = idf(N, n);
 
         return (tf + delta) * idf;
     }
@@ -207,4 +223,88 @@ public class BM25 {
 //
 //        return r;
 //    }
+
+    /**
+     * Returns the inverse document frequency of a term, the factor shared by all its scores.
+     * @param N the number of documents in the corpus.
+     * @param n the number of documents containing the given term in the corpus;
+     * @return the idf.
+     */
+    public double idf(long N, long n) {
+        return Math.log((N - n + 0.5) / (n + 0.5) + 1);
+    }
+
+    /**
+     * Scores a range of postings of one term, same as {@link #score(double, long, long)}.
+     * The loop has no calls and no branches, so the JIT can vectorize it.
+     * @param idf the idf of the term.
+     * @param freqs the normalized term frequencies.
+     * @param scores the scores, may be the same array as freqs.
+     * @param from the first posting (inclusive).
+     * @param to the last posting (exclusive).
+     */
+    public void score(double idf, double[] freqs, double[] scores, int from, int to) {
+        final double k1 = this.k1;
+        final double delta = this.delta;
+        for (int i = from; i < to; i++) {
+            double freq = freqs[i];
+            double tf = (k1 + 1) * freq / (freq + k1);
+            scores[i] = freq > 0 ? (tf + delta) * idf : 0.0;
+        }
+    }
+
+    /**
+     * Scores a range of postings of one term, same as {@link #score(double, int, double, long, long)}.
+     * The loop has no calls and no branches, so the JIT can vectorize it.
+     * @param idf the idf of the term.
+     * @param freqs the term frequencies.
+     * @param docSizes the sizes of the documents of the postings.
+     * @param avgDocSize the average size of documents in the corpus.
+     * @param scores the scores.
+     * @param from the first posting (inclusive).
+     * @param to the last posting (exclusive).
+     */
+    public void score(double idf, int[] freqs, int[] docSizes, double avgDocSize, double[] scores, int from, int to) {
+        final double k1 = this.k1;
+        final double b = this.b;
+        final double delta = this.delta;
+        for (int i = from; i < to; i++) {
+            double freq = freqs[i];
+            double tf = freq * (k1 + 1) / (freq + k1 * (1 - b + b * docSizes[i] / avgDocSize));
+            scores[i] = freq > 0 ? (tf + delta) * idf : 0.0;
+        }
+    }
+
+    /**
+     * Scores a range of postings of one term with byte-encoded document lengths.
+     * The length normalization is a lookup in the table of the norms, there are only 256 of them.
+     * @param idf the idf of the term.
+     * @param docIds the documents of the postings.
+     * @param freqs the term frequencies.
+     * @param docNorms the encoded lengths of all documents, indexed by document id.
+     * @param norms the length normalization table of the corpus.
+     * @param scores the scores.
+     * @param from the first posting (inclusive).
+     * @param to the last posting (exclusive).
+     */
+    public void score(double idf, int[] docIds, int[] freqs, byte[] docNorms, BM25Norms norms,
+                      double[] scores, int from, int to) {
+        final double k1 = this.k1;
+        final double delta = this.delta;
+        final double[] table = norms.table;
+        for (int i = from; i < to; i++) {
+            double freq = freqs[i];
+            double tf = freq * (k1 + 1) / (freq + table[docNorms[docIds[i]] & 0xFF]);
+            scores[i] = freq > 0 ? (tf + delta) * idf : 0.0;
+        }
+    }
+
+    /**
+     * Returns the length normalization table for a corpus.
+     * @param avgDocSize the average size of documents in the corpus.
+     * @return the table.
+     */
+    public BM25Norms norms(double avgDocSize) {
+        return new BM25Norms(k1, b, avgDocSize);
+    }
 }
\ No newline at end of file
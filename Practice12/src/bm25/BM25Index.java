@@ -0,0 +1,347 @@
+package bm25;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Inverted index of precomputed BM25 term weights with exact top-k retrieval.
+ * <p>
+ * The score of a document is the sum of the weights of the query terms it contains.
+ * Every posting list keeps the maximum weight of the term as an upper bound of its impact,
+ * and queries are evaluated document-at-a-time with WAND: a document is only scored when
+ * the upper bounds of the terms it can contain add up to more than the current k-th score.
+ * The result is the same as scoring every document (ties - smaller document id first).
+ */
+public class BM25Index {
+    private static final int[] NO_DOCS = new int[0];
+    private static final double[] NO_WEIGHTS = new double[0];
+    private static final int END = Integer.MAX_VALUE;
+
+    /**
+     * Relative slack of the upper bound test, covers rounding of the bound sums.
+     */
+    private static final double BOUND_SLACK = 1e-9;
+
+    private final int[][] docIds;
+    private final double[][] weights;
+    private final double[] maxWeights;
+
+    /**
+     * Constructor.
+     * @param termsCount the number of terms (term ids are 0 .. termsCount - 1).
+     */
+    public BM25Index(int termsCount) {
+        docIds = new int[termsCount][];
+        weights = new double[termsCount][];
+        maxWeights = new double[termsCount];
+        Arrays.fill(docIds, NO_DOCS);
+        Arrays.fill(weights, NO_WEIGHTS);
+    }
+
+    /**
+     * Sets the posting list of a term.
+     * @param termId the term id.
+     * @param docIds the ids of documents containing the term, ascending.
+     * @param weights the weights of the term in these documents.
+     */
+    public void setPostings(int termId, int[] docIds, double[] weights) {
+        if(docIds.length != weights.length) {
+            throw new IllegalArgumentException("Postings size mismatch: " + docIds.length + " != " + weights.length);
+        }
+
+        double max = 0;
+        for (double weight : weights) {
+            max = Math.max(max, weight);
+        }
+
+        this.docIds[termId] = docIds;
+        this.weights[termId] = weights;
+        this.maxWeights[termId] = max;
+    }
+
+    /**
+     * Writes the posting lists: terms count, then per term the documents count, document ids and weights.
+     * @param out the output.
+     * @throws IOException if the output fails.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(docIds.length);
+        for (int termId = 0; termId < docIds.length; termId++) {
+            out.writeInt(docIds[termId].length);
+            for (int docId : docIds[termId]) {
+                out.writeInt(docId);
+            }
+            for (double weight : weights[termId]) {
+                out.writeDouble(weight);
+            }
+        }
+    }
+
+    /**
+     * Reads posting lists written with {@link #writeTo(DataOutput)} at the position of the buffer
+     * and moves the position after them.
+     * @param buffer the buffer (e.g. a mapped file).
+     * @return the index.
+     */
+    public static BM25Index readFrom(ByteBuffer buffer) {
+        BM25Index index = new BM25Index(buffer.getInt());
+        for (int termId = 0; termId < index.docIds.length; termId++) {
+            int count = buffer.getInt();
+            int[] termDocIds = new int[count];
+            double[] termWeights = new double[count];
+
+            buffer.asIntBuffer().get(termDocIds);
+            buffer.position(buffer.position() + count * Integer.BYTES);
+            buffer.asDoubleBuffer().get(termWeights);
+            buffer.position(buffer.position() + count * Double.BYTES);
+
+            index.setPostings(termId, termDocIds, termWeights);
+        }
+        return index;
+    }
+
+    public int getTermsCount() {
+        return docIds.length;
+    }
+
+    /**
+     * Returns the estimated heap size of the postings in bytes (16-byte array headers, 4-byte references).
+     */
+    public long sizeInBytes() {
+        long bytes = 2 * (16 + 4L * docIds.length) + 16 + 8L * maxWeights.length;
+        for (int termId = 0; termId < docIds.length; termId++) {
+            if(docIds[termId] == NO_DOCS) continue;
+
+            bytes += 16 + 4L * docIds[termId].length + 16 + 8L * weights[termId].length;
+        }
+        return bytes;
+    }
+
+    int[] docIds(int termId) {
+        return docIds[termId];
+    }
+
+    double[] weights(int termId) {
+        return weights[termId];
+    }
+
+    double maxWeight(int termId) {
+        return maxWeights[termId];
+    }
+
+    /**
+     * Returns the k best documents for the query.
+     * @param termIds the query term ids (a repeated term counts again, unknown terms are negative).
+     * @param k the number of documents to return.
+     * @return the documents, best first.
+     */
+    public TopDocs search(int[] termIds, int k) {
+        int n = 0;
+        int[] terms = new int[termIds.length];
+        for (int termId : termIds) {
+            if(termId >= 0 && termId < docIds.length && docIds[termId].length > 0) terms[n++] = termId;
+        }
+
+        //cursors, kept in ascending order of their current documents
+        int[] positions = new int[n];
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+
+        Heap heap = new Heap(k);
+        int scoredDocs = 0;
+
+        while(k > 0) {
+            sortCursors(order, terms, positions);
+
+            //pivot - first cursor at which the upper bounds can beat the k-th score
+            double threshold = heap.isFull() ? heap.minScore() : Double.NEGATIVE_INFINITY;
+            double upperBound = 0;
+            int pivot = -1;
+            for (int i = 0; i < n; i++) {
+                int cursor = order[i];
+                if(doc(terms[cursor], positions[cursor]) == END) break;
+
+                upperBound += maxWeights[terms[cursor]];
+                if(upperBound * (1 + BOUND_SLACK) > threshold) {
+                    pivot = i;
+                    break;
+                }
+            }
+            if(pivot < 0) break;
+
+            int pivotDoc = doc(terms[order[pivot]], positions[order[pivot]]);
+            if(doc(terms[order[0]], positions[order[0]]) == pivotDoc) {
+                //score the pivot document, in query order
+                double score = 0;
+                for (int cursor = 0; cursor < n; cursor++) {
+                    if(doc(terms[cursor], positions[cursor]) == pivotDoc) {
+                        score += weights[terms[cursor]][positions[cursor]];
+                        positions[cursor]++;
+                    }
+                }
+                heap.offer(pivotDoc, score);
+                scoredDocs++;
+            }
+            else {
+                //documents before the pivot document cannot make it to the top
+                for (int i = 0; i < pivot; i++) {
+                    int cursor = order[i];
+                    positions[cursor] = advance(terms[cursor], positions[cursor], pivotDoc);
+                }
+            }
+        }
+
+        return heap.toTopDocs(scoredDocs);
+    }
+
+    private int doc(int termId, int position) {
+        return position < docIds[termId].length ? docIds[termId][position] : END;
+    }
+
+    //first position >= from with a document id >= target (galloping)
+    private int advance(int termId, int from, int target) {
+        int[] postings = docIds[termId];
+        int bound = 1;
+        while(from + bound < postings.length && postings[from + bound] < target) bound <<= 1;
+
+        int index = Arrays.binarySearch(postings, from + (bound >> 1), Math.min(from + bound + 1, postings.length), target);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    //insertion sort, queries are short and the order changes little between steps
+    private void sortCursors(int[] order, int[] terms, int[] positions) {
+        for (int i = 1; i < order.length; i++) {
+            int cursor = order[i];
+            int doc = doc(terms[cursor], positions[cursor]);
+
+            int j = i - 1;
+            while(j >= 0 && doc(terms[order[j]], positions[order[j]]) > doc) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = cursor;
+        }
+    }
+
+    /**
+     * Result of a top-k search.
+     */
+    public static class TopDocs {
+        private final int[] docIds;
+        private final double[] scores;
+        private final int scoredDocs;
+
+        TopDocs(int[] docIds, double[] scores, int scoredDocs) {
+            this.docIds = docIds;
+            this.scores = scores;
+            this.scoredDocs = scoredDocs;
+        }
+
+        public int size() {
+            return docIds.length;
+        }
+
+        public int docId(int i) {
+            return docIds[i];
+        }
+
+        public double score(int i) {
+            return scores[i];
+        }
+
+        /**
+         * Returns the number of documents that were fully scored.
+         */
+        public int getScoredDocs() {
+            return scoredDocs;
+        }
+    }
+
+    /**
+     * Bounded min-heap, the root is the worst kept document (lowest score, then largest id).
+     */
+    private static class Heap {
+        private final int[] docIds;
+        private final double[] scores;
+        private int size;
+
+        Heap(int k) {
+            docIds = new int[Math.max(k, 0)];
+            scores = new double[Math.max(k, 0)];
+        }
+
+        boolean isFull() {
+            return size == docIds.length;
+        }
+
+        double minScore() {
+            return scores[0];
+        }
+
+        void offer(int docId, double score) {
+            if(!isFull()) {
+                docIds[size] = docId;
+                scores[size] = score;
+                siftUp(size++);
+            }
+            else if(size > 0 && worse(0, docId, score)) {
+                docIds[0] = docId;
+                scores[0] = score;
+                siftDown(0);
+            }
+        }
+
+        TopDocs toTopDocs(int scoredDocs) {
+            int count = size;
+            int[] resultIds = new int[count];
+            double[] resultScores = new double[count];
+            while(size > 0) {
+                resultIds[size - 1] = docIds[0];
+                resultScores[size - 1] = scores[0];
+                size--;
+                docIds[0] = docIds[size];
+                scores[0] = scores[size];
+                siftDown(0);
+            }
+            return new TopDocs(resultIds, resultScores, scoredDocs);
+        }
+
+        //entry i ranks below (docId, score)
+        private boolean worse(int i, int docId, double score) {
+            if(scores[i] != score) return scores[i] < score;
+            return docIds[i] > docId;
+        }
+
+        private void siftUp(int i) {
+            while(i > 0) {
+                int parent = (i - 1) >>> 1;
+                if(!worse(i, docIds[parent], scores[parent])) break;
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while(true) {
+                int child = 2 * i + 1;
+                if(child >= size) break;
+                if(child + 1 < size && worse(child + 1, docIds[child], scores[child])) child++;
+                if(!worse(child, docIds[i], scores[i])) break;
+                swap(i, child);
+                i = child;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int docId = docIds[i];
+            docIds[i] = docIds[j];
+            docIds[j] = docId;
+
+            double score = scores[i];
+            scores[i] = scores[j];
+            scores[j] = score;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package bm25;
+
+/**
+ * Document lengths encoded in one byte and the BM25 length normalization of every code.
+ * <p>
+ * Lengths below {@link #EXACT_LENGTHS} are kept exactly, longer ones as a 4-bit mantissa
+ * float (as Lucene's {@code SmallFloat.intToByte4}), rounded down. So the per-document
+ * norm costs one byte and its normalization {@code k1 * (1 - b + b * length / avgLength)}
+ * is computed once per code, not once per posting.
+ */
+public class BM25Norms {
+    /**
+     * The code of Integer.MAX_VALUE in the float part.
+     */
+    private static final int MAX_INT4 = longToInt4(Integer.MAX_VALUE);
+
+    /**
+     * Lengths that are encoded exactly.
+     */
+    public static final int EXACT_LENGTHS = 255 - MAX_INT4;
+
+    //code -> k1 * (1 - b + b * length / avgLength)
+    final double[] table = new double[256];
+
+    BM25Norms(double k1, double b, double avgDocSize) {
+        for (int code = 0; code < table.length; code++) {
+            table[code] = k1 * (1 - b + b * decode((byte)code) / avgDocSize);
+        }
+    }
+
+    /**
+     * Returns the length normalization of a code.
+     */
+    public double get(byte norm) {
+        return table[norm & 0xFF];
+    }
+
+    /**
+     * Encodes a document length (lossy for long documents, the result is never more than the length).
+     */
+    public static byte encode(int length) {
+        if(length < 0) throw new IllegalArgumentException("Negative length = " + length);
+
+        if(length < EXACT_LENGTHS) return (byte)length;
+        return (byte)(EXACT_LENGTHS + longToInt4(length - EXACT_LENGTHS));
+    }
+
+    /**
+     * Decodes a document length.
+     */
+    public static int decode(byte norm) {
+        int code = norm & 0xFF;
+        if(code < EXACT_LENGTHS) return code;
+        return (int)(EXACT_LENGTHS + int4ToLong(code - EXACT_LENGTHS));
+    }
+
+    //float with a 3-bit mantissa (+ implicit bit) and the exponent above it
+    private static int longToInt4(long value) {
+        int bits = 64 - Long.numberOfLeadingZeros(value);
+        if(bits < 4) return (int)value;
+
+        int shift = bits - 4;
+        int encoded = (int)(value >>> shift) & 0x07;
+        return encoded | ((shift + 1) << 3);
+    }
+
+    private static long int4ToLong(int code) {
+        long bits = code & 0x07;
+        int shift = (code >>> 3) - 1;
+        if(shift == -1) return bits;
+        return (bits | 0x08) << shift;
+    }
+}
@@ -0,0 +1,309 @@
+package bm25;
+
+import java.util.Arrays;
+
+/**
+ * Impact-ordered variant of {@link BM25Index}.
+ * <p>
+ * The BM25 weight of every posting is quantized to an 8-bit impact (1 .. 255) on one scale
+ * for the whole index, and the postings of a term are grouped into segments of equal impact,
+ * highest impact first. Queries are evaluated score-at-a-time: segments of all query terms are
+ * processed in descending impact order, adding integer impacts into accumulators, and the
+ * evaluation stops as soon as the impacts left cannot change which documents are in the top k.
+ * The scores of those documents are then completed, so the ranking is exact for the quantized
+ * weights; it differs from {@link BM25Index} only by the quantization error.
+ */
+public class ImpactIndex {
+    public static final int LEVELS = 255;
+
+    private static final int[] NO_INTS = new int[0];
+    private static final byte[] NO_BYTES = new byte[0];
+
+    //weight of one impact level
+    private final double scale;
+
+    //per term: segment impacts (descending), segment starts, document ids (ascending in a segment)
+    private final byte[][] impacts;
+    private final int[][] segmentStarts;
+    private final int[][] docIds;
+
+    //query scratch space, one per querying thread
+    private final ThreadLocal<Accumulator> accumulators;
+
+    /**
+     * Quantizes the weights of a BM25 index.
+     * @param index the index with precomputed weights.
+     * @param documentsCount the number of documents in the corpus.
+     */
+    public ImpactIndex(BM25Index index, int documentsCount) {
+        int termsCount = index.getTermsCount();
+
+        double maxWeight = 0;
+        for (int termId = 0; termId < termsCount; termId++) {
+            maxWeight = Math.max(maxWeight, index.maxWeight(termId));
+        }
+        scale = maxWeight > 0 ? maxWeight / LEVELS : 1;
+
+        impacts = new byte[termsCount][];
+        segmentStarts = new int[termsCount][];
+        docIds = new int[termsCount][];
+        for (int termId = 0; termId < termsCount; termId++) {
+            quantize(termId, index.docIds(termId), index.weights(termId));
+        }
+
+        accumulators = ThreadLocal.withInitial(() -> new Accumulator(documentsCount));
+    }
+
+    private void quantize(int termId, int[] termDocIds, double[] termWeights) {
+        if(termDocIds.length == 0) {
+            impacts[termId] = NO_BYTES;
+            segmentStarts[termId] = NO_INTS;
+            docIds[termId] = NO_INTS;
+            return;
+        }
+
+        int[] termImpacts = new int[termDocIds.length];
+        int[] counts = new int[LEVELS + 1];
+        for (int i = 0; i < termDocIds.length; i++) {
+            termImpacts[i] = Math.max(1, Math.min(LEVELS, (int)Math.round(termWeights[i] / scale)));
+            counts[termImpacts[i]]++;
+        }
+
+        int segmentsCount = 0;
+        for (int impact = LEVELS; impact > 0; impact--) {
+            if(counts[impact] > 0) segmentsCount++;
+        }
+
+        //counting sort by descending impact, document ids stay ascending inside a segment
+        byte[] segmentImpacts = new byte[segmentsCount];
+        int[] starts = new int[segmentsCount + 1];
+        int[] offsets = new int[LEVELS + 1];
+        int segment = 0;
+        int offset = 0;
+        for (int impact = LEVELS; impact > 0; impact--) {
+            if(counts[impact] == 0) continue;
+
+            segmentImpacts[segment] = (byte)impact;
+            starts[segment++] = offset;
+            offsets[impact] = offset;
+            offset += counts[impact];
+        }
+        starts[segmentsCount] = offset;
+
+        int[] sortedDocIds = new int[termDocIds.length];
+        for (int i = 0; i < termDocIds.length; i++) {
+            sortedDocIds[offsets[termImpacts[i]]++] = termDocIds[i];
+        }
+
+        impacts[termId] = segmentImpacts;
+        segmentStarts[termId] = starts;
+        docIds[termId] = sortedDocIds;
+    }
+
+    /**
+     * Returns the estimated heap size of the postings in bytes (16-byte array headers, 4-byte references).
+     * The accumulators of the querying threads are not counted.
+     */
+    public long sizeInBytes() {
+        long bytes = 3 * (16 + 4L * docIds.length);
+        for (int termId = 0; termId < docIds.length; termId++) {
+            if(docIds[termId] == NO_INTS) continue;
+
+            bytes += 16 + impacts[termId].length + 16 + 4L * segmentStarts[termId].length + 16 + 4L * docIds[termId].length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the k best documents for the query by quantized score.
+     * @param termIds the query term ids (a repeated term counts again, unknown terms are negative).
+     * @param k the number of documents to return.
+     * @return the documents, best first; scores are the dequantized sums of impacts.
+     */
+    public BM25Index.TopDocs search(int[] termIds, int k) {
+        int n = 0;
+        int[] terms = new int[termIds.length];
+        for (int termId : termIds) {
+            if(termId >= 0 && termId < docIds.length && docIds[termId].length > 0) terms[n++] = termId;
+        }
+
+        //next segment of every query term
+        int[] segments = new int[n];
+        int remaining = 0;
+        for (int i = 0; i < n; i++) {
+            remaining += nextImpact(terms[i], 0);
+        }
+
+        Accumulator accumulator = accumulators.get();
+        accumulator.reset(remaining);
+
+        int nextCheck = remaining / 2;
+        for (int level = LEVELS; level > 0 && remaining > 0 && k > 0; level--) {
+            for (int i = 0; i < n; i++) {
+                int termId = terms[i];
+                if(nextImpact(termId, segments[i]) != level) continue;
+
+                int[] termDocIds = docIds[termId];
+                for (int p = segmentStarts[termId][segments[i]]; p < segmentStarts[termId][segments[i] + 1]; p++) {
+                    accumulator.add(termDocIds[p], level);
+                }
+                segments[i]++;
+                remaining += nextImpact(termId, segments[i]) - level;
+            }
+
+            //checks are spread over the halvings of the remaining impacts
+            if(remaining <= nextCheck) {
+                if(accumulator.isTopFixed(k, remaining)) break;
+                nextCheck = remaining / 2;
+            }
+        }
+
+        int[] top = accumulator.top(k);
+        int[] topScores = new int[top.length];
+        for (int j = 0; j < top.length; j++) {
+            topScores[j] = accumulator.score(top[j]) + remainingImpact(top[j], terms, segments, n);
+        }
+
+        //order by complete score, ties - smaller document id first
+        Integer[] order = new Integer[top.length];
+        for (int j = 0; j < order.length; j++) order[j] = j;
+        Arrays.sort(order, (a, b) -> topScores[a] != topScores[b]
+                ? Integer.compare(topScores[b], topScores[a])
+                : Integer.compare(top[a], top[b]));
+
+        int[] resultIds = new int[top.length];
+        double[] resultScores = new double[top.length];
+        for (int j = 0; j < order.length; j++) {
+            resultIds[j] = top[order[j]];
+            resultScores[j] = topScores[order[j]] * scale;
+        }
+        return new BM25Index.TopDocs(resultIds, resultScores, accumulator.touchedCount());
+    }
+
+    private int nextImpact(int termId, int segment) {
+        return segment < impacts[termId].length ? impacts[termId][segment] & 0xFF : 0;
+    }
+
+    //impacts of a document in the segments that were not processed
+    private int remainingImpact(int docId, int[] terms, int[] segments, int n) {
+        int impact = 0;
+        for (int i = 0; i < n; i++) {
+            int termId = terms[i];
+            for (int segment = segments[i]; segment < impacts[termId].length; segment++) {
+                int from = segmentStarts[termId][segment];
+                int to = segmentStarts[termId][segment + 1];
+                if(Arrays.binarySearch(docIds[termId], from, to, docId) >= 0) {
+                    impact += impacts[termId][segment] & 0xFF;
+                    break;
+                }
+            }
+        }
+        return impact;
+    }
+
+    /**
+     * Integer score accumulators with a list of touched documents.
+     */
+    private static class Accumulator {
+        private final int[] scores;
+        private final int[] touched;
+        private int size;
+        //histogram of touched scores, used to find the k-th score
+        private int[] histogram;
+
+        Accumulator(int documentsCount) {
+            scores = new int[documentsCount];
+            touched = new int[documentsCount];
+            histogram = new int[0];
+        }
+
+        void reset(int maxScore) {
+            for (int i = 0; i < size; i++) {
+                scores[touched[i]] = 0;
+            }
+            size = 0;
+            if(histogram.length < maxScore + 1) histogram = new int[maxScore + 1];
+        }
+
+        void add(int docId, int impact) {
+            if(scores[docId] == 0) touched[size++] = docId;
+            scores[docId] += impact;
+        }
+
+        int score(int docId) {
+            return scores[docId];
+        }
+
+        int touchedCount() {
+            return size;
+        }
+
+        /**
+         * True when no document outside the current top k can reach it with the remaining impacts.
+         */
+        boolean isTopFixed(int k, int remaining) {
+            if(size < k) return false;
+
+            fillHistogram();
+            int kth = scoreAt(k);
+            int next = size > k ? scoreAt(k + 1) : 0;
+            clearHistogram();
+
+            return kth > next + remaining;
+        }
+
+        /**
+         * Documents with the k highest scores (ties - smaller document id first), in no particular order.
+         */
+        int[] top(int k) {
+            if(k <= 0 || size == 0) return new int[0];
+
+            fillHistogram();
+            int kth = scoreAt(Math.min(k, size));
+            clearHistogram();
+
+            int above = 0;
+            for (int i = 0; i < size; i++) {
+                if(scores[touched[i]] > kth) above++;
+            }
+
+            int[] ties = new int[size];
+            int tiesCount = 0;
+            int[] result = new int[Math.min(k, size)];
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                int docId = touched[i];
+                if(scores[docId] > kth) result[count++] = docId;
+                else if(scores[docId] == kth) ties[tiesCount++] = docId;
+            }
+
+            Arrays.sort(ties, 0, tiesCount);
+            for (int i = 0; i < tiesCount && above + i < result.length; i++) {
+                result[count++] = ties[i];
+            }
+            return result;
+        }
+
+        //rank-th highest touched score (1-based)
+        private int scoreAt(int rank) {
+            int seen = 0;
+            for (int score = histogram.length - 1; score > 0; score--) {
+                seen += histogram[score];
+                if(seen >= rank) return score;
+            }
+            return 0;
+        }
+
+        private void fillHistogram() {
+            for (int i = 0; i < size; i++) {
+                int score = scores[touched[i]];
+                if(score >= histogram.length) histogram = Arrays.copyOf(histogram, score + 1);
+                histogram[score]++;
+            }
+        }
+
+        private void clearHistogram() {
+            Arrays.fill(histogram, 0);
+        }
+    }
+}
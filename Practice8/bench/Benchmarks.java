@@ -0,0 +1,130 @@
+import com.kursx.parser.fb2.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Objects;
+import java.util.Random;
+
+/**
+ * Benchmarks of the tf-idf clustering: tokenization and vector similarity, then build and queries
+ * on the bundled books and on synthetic corpora. Run from the module directory:
+ * <pre>
+ * java -cp out:fb2parser.jar -Dbench.time=500 Benchmarks [name filter]
+ * </pre>
+ */
+public class Benchmarks {
+    private static final long SEED = 42;
+    private static final int[] SYNTHETIC_BOOKS = {100, 400};
+    private static final String[] QUERIES = {"zombie war", "the", "tunnel people", "red hammer", "love and death"};
+
+    public static void main(String[] args) throws Exception {
+        Benchmark benchmark = new Benchmark(args);
+
+        File[] files = Objects.requireNonNull(new File("src/documents").listFiles());
+
+        //micro
+        ArrayList<String> texts = new ArrayList<>();
+        for (File file : files) {
+            collectTexts(new FictionBook(file), texts);
+        }
+        Tokenizer tokenizer = new Tokenizer();
+        benchmark.run("tokenize.books", () -> {
+            int terms = 0;
+            for (String text : texts) {
+                tokenizer.reset(text);
+                while(tokenizer.next() != null) terms++;
+            }
+            return terms;
+        });
+
+        Random random = new Random(SEED);
+        DocumentVector[] merge = {vector(random, 300), vector(random, 300)};
+        benchmark.run("similarity.merge.300x300", () -> merge[0].similarity(merge[1]));
+        DocumentVector[] gallop = {vector(random, 30), vector(random, 5000)};
+        benchmark.run("similarity.gallop.30x5000", () -> gallop[0].similarity(gallop[1]));
+
+        //macro, bundled books
+        macro(benchmark, "books", files, QUERIES);
+
+        //macro, synthetic books
+        for (int count : SYNTHETIC_BOOKS) {
+            String name = "synthetic" + count;
+            if(!benchmark.enabled(macroNames(name))) continue;
+
+            SyntheticCorpus corpus = new SyntheticCorpus(SEED);
+            Path dir = Files.createTempDirectory("bench-books");
+            corpus.writeFictionBooks(dir, count, 20_000);
+            String[] queries = new String[QUERIES.length];
+            for (int i = 0; i < queries.length; i++) {
+                queries[i] = corpus.query(2);
+            }
+
+            File[] books = Objects.requireNonNull(dir.toFile().listFiles());
+            macro(benchmark, name, books, queries);
+
+            for (File book : books) book.delete();
+            dir.toFile().delete();
+        }
+    }
+
+    private static void macro(Benchmark benchmark, String corpus, File[] files, String[] queries) throws Exception {
+        if(!benchmark.enabled(macroNames(corpus))) return;
+
+        Clustering clustering = new Clustering();
+        clustering.setSeed(SEED);
+        clustering.setQueryCache(0, 0);
+        for (File file : files) {
+            clustering.addDocument(file);
+        }
+
+        benchmark.run("build." + corpus, 2, 5, () -> {
+            clustering.build();
+            return clustering;
+        });
+
+        clustering.build();
+        int[] next = {0};
+        benchmark.run("query." + corpus, () -> clustering.findWithQuery(queries[next[0]++ % queries.length]));
+    }
+
+    private static String[] macroNames(String corpus) {
+        return new String[] {"build." + corpus, "query." + corpus};
+    }
+
+    //term ids spread over a vocabulary of 100 000 terms
+    private static DocumentVector vector(Random random, int size) {
+        DocumentVector vector = new DocumentVector();
+        random.ints(0, 100_000).distinct().limit(size).forEach(termId -> vector.put(termId, 1 + random.nextDouble()));
+        vector.computeLength();
+        return vector;
+    }
+
+    //the texts Clustering indexes
+    private static void collectTexts(FictionBook book, ArrayList<String> texts) {
+        texts.add(book.getTitle());
+        for (Section section : book.getBody().getSections()) {
+            collectTexts(section, texts);
+        }
+    }
+
+    private static void collectTexts(Section section, ArrayList<String> texts) {
+        if(section.getAnnotation() != null) {
+            for (Element element : section.getAnnotation().getAnnotations()) {
+                texts.add(element.getText());
+            }
+        }
+        for (Title title : section.getTitles()) {
+            for (P paragraph : title.getParagraphs()) {
+                texts.add(paragraph.getText());
+            }
+        }
+        for (Element element : section.getElements()) {
+            texts.add(element.getText());
+        }
+        for (Section child : section.getSections()) {
+            collectTexts(child, texts);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generated corpora of any size for the benchmarks, the same for the same seed.
+ * <p>
+ * Words are drawn from a vocabulary of made-up lower case words with Zipf-distributed frequencies,
+ * so the index sees realistic posting list lengths: a few very long lists and a long tail of short ones.
+ */
+final class SyntheticCorpus {
+    static final int VOCABULARY_SIZE = 50_000;
+
+    private final Random random;
+    private final String[] vocabulary = new String[VOCABULARY_SIZE];
+    //cumulative Zipf (s = 1) probabilities of the vocabulary
+    private final double[] cumulative = new double[VOCABULARY_SIZE];
+
+    SyntheticCorpus(long seed) {
+        random = new Random(seed);
+
+        char[] letters = new char[12];
+        for (int i = 0; i < VOCABULARY_SIZE; i++) {
+            //frequent words are short
+            int length = 2 + Math.min(10, (int)Math.log(i + 1) + random.nextInt(3));
+            for (int c = 0; c < length; c++) {
+                letters[c] = (char)('a' + random.nextInt(26));
+            }
+            vocabulary[i] = new String(letters, 0, length);
+        }
+
+        double sum = 0;
+        for (int i = 0; i < VOCABULARY_SIZE; i++) {
+            sum += 1.0 / (i + 1);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < VOCABULARY_SIZE; i++) {
+            cumulative[i] /= sum;
+        }
+    }
+
+    String word() {
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        return vocabulary[Math.min(index >= 0 ? index : -index - 1, VOCABULARY_SIZE - 1)];
+    }
+
+    String text(int words) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if(i > 0) sb.append(i % 12 == 0 ? ". " : " ");
+            sb.append(word());
+        }
+        return sb.append('.').toString();
+    }
+
+    /**
+     * A query of some of the more frequent words.
+     */
+    String query(int words) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if(i > 0) sb.append(' ');
+            sb.append(vocabulary[10 + random.nextInt(2000)]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes count FB2 books of about wordsPerBook words into dir.
+     */
+    void writeFictionBooks(Path dir, int count, int wordsPerBook) throws IOException {
+        Files.createDirectories(dir);
+        for (int book = 0; book < count; book++) {
+            Path file = dir.resolve(String.format("book%06d.fb2", book));
+            try(BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+                writer.write("<FictionBook xmlns=\"http://www.gribuser.ru/xml/fictionbook/2.0\">\n");
+                writer.write("<description><title-info><book-title>" + text(3) + "</book-title></title-info></description>\n");
+                writer.write("<body>\n");
+
+                int words = wordsPerBook / 2 + random.nextInt(wordsPerBook + 1);
+                while(words > 0) {
+                    writer.write("<section>\n<title><p>" + text(4) + "</p></title>\n");
+                    if(random.nextInt(4) == 0) writer.write("<annotation><p>" + text(20) + "</p></annotation>\n");
+                    for (int p = 0; p < 20 && words > 0; p++) {
+                        int paragraph = Math.min(words, 20 + random.nextInt(100));
+                        writer.write("<p>" + text(paragraph) + "</p>\n");
+                        words -= paragraph;
+                    }
+                    writer.write("</section>\n");
+                }
+
+                writer.write("</body>\n</FictionBook>\n");
+            }
+        }
+    }
+
+    /**
+     * Writes count Cranfield records of about wordsPerDocument words into file.
+     */
+    void writeCranfield(Path file, int count, int wordsPerDocument) throws IOException {
+        try(BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.ISO_8859_1)) {
+            for (int doc = 1; doc <= count; doc++) {
+                writer.write(".I " + doc + "\n.T\n" + text(8) + "\n.A\nauthor, a.\n.B\njournal\n.W\n");
+
+                String text = text(wordsPerDocument / 2 + random.nextInt(wordsPerDocument + 1));
+                //lines of about 70 characters
+                int start = 0;
+                while(start < text.length()) {
+                    int end = Math.min(text.length(), start + 70);
+                    while(end < text.length() && text.charAt(end) != ' ') end++;
+                    writer.write(text, start, end - start);
+                    writer.write('\n');
+                    start = end + 1;
+                }
+            }
+        }
+    }
+}
@@ -1,73 +1,233 @@
 import com.kursx.parser.fb2.*;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.function.LongSupplier;
+import java.util.stream.IntStream;
 
 public class Clustering {
     private static final int RESULT_SIZE = 3;
-    private static int MAX_CLUSTER_SIZE;
-
-    //documents' ids
+    //preferred leaders kept per follower, the rest is ranked again only if all of their clusters are full
+    private static final int KEPT_PREFERENCES = 8;
+
+    static final int SNAPSHOT_MAGIC = 0x434C5354; // "CLST"
+    static final int SNAPSHOT_VERSION = 2;
+
+    //metrics series
+    static final String DOCUMENTS_PARSED = "clustering_documents_parsed_total";
+    static final String DOCUMENTS_FAILED = "clustering_documents_failed_total";
+    static final String BUILDS = "clustering_builds_total";
+    static final String BUILD_SECONDS = "clustering_build_seconds";
+    static final String STAGE_SECONDS = "clustering_build_stage_seconds";
+    static final String HEAP_BYTES = "clustering_index_heap_bytes";
+    private static final QueryMetrics CLUSTER_QUERIES = new QueryMetrics("cluster");
+
+    //documents' ids, added under their own lock so that books can be added while a build runs
     private final ArrayList<FictionBook> documents;
+    //files of the documents, same ids and lock
+    private final ArrayList<Source> sources;
+
+    //the built index, queries read it without locks and every build publishes a new one
+    private volatile IndexSnapshot index;
 
+    //one build at a time, the build state below is only touched under this lock
+    private final Object buildLock = new Object();
     //inverted index (tf(t,d) + idf(t))
-    private HashMap<String, HashMap<Integer, Integer>> termFreq;
-    //term ids (dictionary)
-    private HashMap<String, Integer> termIds;
-    private int freeId;
+    private HashMap<String, Postings> termFreq;
+    //splits the documents while building
+    private Tokenizer tokenizer;
 
-    //documents' vectors
-    private ArrayList<DocumentVector> vectors;
-    //leaders documents' ids
-    private TreeSet<Integer> leaders;
-    //clusters (leader -> followers)
-    private HashMap<Integer, TreeSet<Integer>> clusters;
+    //build document vectors and score followers on all cores
+    private volatile boolean parallelBuild = true;
+    //leaders selection
+    private volatile long seed = new Random().nextLong();
+    //results of repeated queries, dropped by every build
+    private volatile QueryCache queryCache = new QueryCache();
+    //timings and counters of builds and queries
+    private final Metrics metrics = new Metrics();
 
 
     public Clustering() {
-        termFreq = new HashMap<>();
-        termIds = new HashMap<>();
-        freeId = 0;
         documents = new ArrayList<>();
-        vectors = new ArrayList<>();
-        leaders = new TreeSet<>();
-        clusters = new HashMap<>();
+        sources = new ArrayList<>();
+        index = IndexSnapshot.EMPTY;
+
+        metrics.gauge("clustering_documents", () -> index.vectors.size());
+        metrics.gauge("clustering_terms", () -> index.dictionary.size());
+        metrics.gauge("clustering_leaders", () -> index.leaders.size());
+        for (String structure : IndexSnapshot.STRUCTURES) {
+            metrics.gauge(HEAP_BYTES + "{structure=\"" + structure + "\"}", () -> index.heapUsage.get(structure));
+        }
+        metrics.gauge("clustering_query_cache_entries", () -> queryCache.size());
+        metrics.gauge("clustering_query_cache_bytes", () -> queryCache.sizeInBytes());
+        metrics.gauge("clustering_query_cache_hits", () -> queryCache.getHits());
+        metrics.gauge("clustering_query_cache_misses", () -> queryCache.getMisses());
     }
 
     public void addDocument(File file) throws IllegalArgumentException {
         if(!file.exists() || !file.getName().endsWith(".fb2"))
             throw new IllegalArgumentException("Incorrect file");
 
+        BuildStageEvent event = new BuildStageEvent();
+        event.begin();
+        long start = metrics.start();
+
+        //before parsing, a change made meanwhile makes the index out of date
+        Source source = new Source(file);
         FictionBook document;
         try {
             document = new FictionBook(file);
-            documents.add(document);
+            synchronized(documents) {
+                documents.add(document);
+                sources.add(source);
+            }
         } catch (Exception e) {
+            metrics.increment(DOCUMENTS_FAILED);
             e.printStackTrace();
+            return;
         }
+
+        metrics.increment(DOCUMENTS_PARSED);
+        endStage(event, start, "parse", 1, 0, () -> 0);
+    }
+
+    public void setParallelBuild(boolean parallelBuild) {
+        this.parallelBuild = parallelBuild;
+    }
+
+    /**
+     * Sets the seed of the leaders selection, the same seed always gives the same clusters.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Limits the query result cache, zero entries disables it.
+     */
+    public void setQueryCache(int maxEntries, long maxBytes) {
+        queryCache = new QueryCache(maxEntries, maxBytes);
+    }
+
+    QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * Counters and latency histograms of builds and queries, {@link Metrics#scrape()} dumps them.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Estimated heap bytes of the structures of the current index by name, and their total.
+     */
+    public Map<String, Long> getHeapUsage() {
+        return index.heapUsage;
     }
 
+    /**
+     * Builds a new index of the added documents and publishes it when it is complete.
+     * Queries running meanwhile keep using the previous index, builds are serialized.
+     */
     public void build() {
-        //reset
-        MAX_CLUSTER_SIZE = (int)Math.round(Math.sqrt(documents.size())) + 1;
-        termFreq = new HashMap<>();
-        termIds = new HashMap<>();
-        freeId = 0;
-        vectors = new ArrayList<>();
-        leaders = new TreeSet<>();
-        clusters = new HashMap<>();
+        synchronized(buildLock) {
+            BuildStageEvent buildEvent = new BuildStageEvent();
+            buildEvent.begin();
+            long buildStart = metrics.start();
+
+            ArrayList<FictionBook> documents;
+            Source[] sources;
+            synchronized(this.documents) {
+                documents = new ArrayList<>(this.documents);
+                sources = this.sources.toArray(new Source[0]);
+            }
+            long seed = this.seed;
+            int N = documents.size();
+
+            termFreq = new HashMap<>();
+            tokenizer = new Tokenizer();
+            String[] titles = new String[N];
+
+            //process
+            BuildStageEvent event = new BuildStageEvent();
+            event.begin();
+            long start = metrics.start();
+            for (int docId = 0; docId < N; docId++) {
+                titles[docId] = documents.get(docId).getTitle();
+                processDocument(documents.get(docId), docId);
+            }
+            int termsCount = termFreq.size();
+            endStage(event, start, "tokenize", N, termsCount, () -> IndexSnapshot.titlesBytes(titles));
+
+            //build clusters
+            event = new BuildStageEvent();
+            event.begin();
+            start = metrics.start();
+            TermDictionary dictionary = TermDictionary.build(termFreq.keySet());
+            endStage(event, start, "dictionary", N, termsCount, dictionary::sizeInBytes);
+
+            event = new BuildStageEvent();
+            event.begin();
+            start = metrics.start();
+            ArrayList<DocumentVector> vectors = buildDocumentVectors(dictionary, N);
+            endStage(event, start, "vectors", N, termsCount, () -> IndexSnapshot.vectorsBytes(vectors));
+
+            event = new BuildStageEvent();
+            event.begin();
+            start = metrics.start();
+            HashMap<Integer, SortedSet<Integer>> clusters = buildClusters(vectors, seed);
+            endStage(event, start, "clusters", N, termsCount, () -> IndexSnapshot.clustersBytes(clusters));
+
+            //the postings are in the vectors now, the terms in the dictionary
+            termFreq = null;
+            tokenizer = null;
+
+            //publish, then drop the results of the previous index
+            IndexSnapshot index = new IndexSnapshot(seed, titles, sources, dictionary, vectors, clusters);
+            this.index = index;
+            queryCache.invalidate();
+
+            metrics.increment(BUILDS);
+            metrics.record(BUILD_SECONDS, buildStart);
+            endStage(buildEvent, 0, "build", N, termsCount, () -> index.heapUsage.get(IndexSnapshot.TOTAL));
+        }
+    }
 
-        //process
-        for (int docId = 0; docId < documents.size(); docId++) {
-            processDocument(documents.get(docId), docId);
+    /**
+     * Ends a build stage: commits its JFR event if it is recorded and its time if the metrics are enabled.
+     * The heap size is only estimated for a recorded event.
+     */
+    private void endStage(BuildStageEvent event, long start, String stage, int documents, int terms, LongSupplier heapBytes) {
+        event.end();
+        if(event.shouldCommit()) {
+            event.stage = stage;
+            event.documents = documents;
+            event.terms = terms;
+            event.heapBytes = heapBytes.getAsLong();
+            event.commit();
         }
 
-        //build clusters
-        buildDocumentVectors();
-        buildClusters();
+        if(start != 0)
+            metrics.record(STAGE_SECONDS + "{stage=\"" + stage + "\"}", start);
     }
 
     private void processDocument(FictionBook doc, int docId) {
@@ -124,53 +284,76 @@ public class Clustering {
     private void processText(String text, int docId) {
         if(text == null) return;
 
-        String[] terms = text.split("[^A-Za-z]+");
-        for (String term : terms) {
-            term = term.trim().toLowerCase();
-            if(term.length() != 0 && term.length() <= 20) {
-                //1
-                if(!termIds.containsKey(term)) {
-                    termIds.put(term, freeId++);
-                }
-
-                //2
-                if(!termFreq.containsKey(term))
-                    termFreq.put(term, new HashMap<>());
-
-                Integer tf = termFreq.get(term).get(docId);
-                termFreq.get(term).put(docId, tf == null ? 1 : tf + 1);
+        tokenizer.reset(text);
+        for (String term = tokenizer.next(); term != null; term = tokenizer.next()) {
+            Postings postings = termFreq.get(term);
+            if(postings == null) {
+                postings = new Postings();
+                termFreq.put(term, postings);
             }
+
+            postings.increment(docId);
         }
     }
 
-    void buildDocumentVectors() {
-        for(int docId = 0; docId < documents.size(); docId++) {
-            DocumentVector vector = new DocumentVector();
+    private ArrayList<DocumentVector> buildDocumentVectors(TermDictionary dictionary, int N) {
+
+        //one pass over the posting lists, idf computed once per term
+        int termsCount = termFreq.size();
+        int[] ids = new int[termsCount];
+        Postings[] postings = new Postings[termsCount];
+        double[] idf = new double[termsCount];
+        int t = 0;
+        for (Map.Entry<String, Postings> entry : termFreq.entrySet()) {
+            ids[t] = dictionary.id(entry.getKey());
+            postings[t] = entry.getValue();
+            idf[t] = 1 + Math.log((double)N / postings[t].size());
+            t++;
+        }
+
+        //document ranges are independent, each one takes its part of every posting list
+        DocumentVector[] result = new DocumentVector[N];
+        int rangesCount = parallelBuild ? Math.min(N, Runtime.getRuntime().availableProcessors() * 4) : 1;
+        IntStream ranges = IntStream.range(0, rangesCount);
+        (parallelBuild ? ranges.parallel() : ranges).forEach(range -> {
+            int from = (int)((long)N * range / rangesCount);
+            int to = (int)((long)N * (range + 1) / rangesCount);
 
-            for (String term : termFreq.keySet()) {
-                if(termFreq.get(term).containsKey(docId)) {
-                    double termWeight = (1 + Math.log(termFreq.get(term).get(docId)))
-                            * (1 + Math.log((double)documents.size() / termFreq.get(term).size()));
-                    vector.put(termIds.get(term), termWeight);
+            for (int docId = from; docId < to; docId++) {
+                result[docId] = new DocumentVector();
+            }
+
+            for (int term = 0; term < termsCount; term++) {
+                Postings termPostings = postings[term];
+                for (int i = termPostings.lowerBound(from); i < termPostings.size() && termPostings.docId(i) < to; i++) {
+                    double termWeight = (1 + Math.log(termPostings.freq(i))) * idf[term];
+                    result[termPostings.docId(i)].put(ids[term], termWeight);
                 }
             }
 
-            vector.computeLength();
-            vectors.add(vector);
-        }
+            for (int docId = from; docId < to; docId++) {
+                result[docId].computeLength();
+            }
+        });
+
+        return new ArrayList<>(Arrays.asList(result));
     }
 
-    void buildClusters() {
+    private HashMap<Integer, SortedSet<Integer>> buildClusters(ArrayList<DocumentVector> vectors, long seed) {
         //select leaders
-        int leadersCount = (int)Math.round(Math.sqrt(documents.size()));
+        int leadersCount = (int)Math.round(Math.sqrt(vectors.size()));
+        int maxClusterSize = leadersCount + 1;
 
         ArrayList<Integer> unusedDocIds = new ArrayList<>();
-        for (int i = 0; i < documents.size(); i++) {
+        for (int i = 0; i < vectors.size(); i++) {
             unusedDocIds.add(i);
         }
 
+        TreeSet<Integer> leaders = new TreeSet<>();
+        HashMap<Integer, SortedSet<Integer>> clusters = new HashMap<>();
+        Random random = new Random(seed);
         while(leaders.size() < leadersCount) {
-            int randomUnusedIndex = (int)(Math.random() * unusedDocIds.size());
+            int randomUnusedIndex = random.nextInt(unusedDocIds.size());
             int leaderId = unusedDocIds.remove(randomUnusedIndex);
             leaders.add(leaderId);
             TreeSet<Integer> cluster = new TreeSet<>();
@@ -178,35 +361,101 @@ public class Clustering {
             clusters.put(leaderId, cluster);
         }
 
-        //build clusters with all unused documents
-        for (Integer followerId : unusedDocIds) {
-            TreeMap<Double, Integer> mostSimilarLeaders = new TreeMap<>();
+        int[] leaderIds = new int[leaders.size()];
+        int l = 0;
+        for (Integer leaderId : leaders) {
+            leaderIds[l++] = leaderId;
+        }
 
-            DocumentVector followerVector = vectors.get(followerId);
-            for (Integer leaderId : leaders) {
-                mostSimilarLeaders.put(followerVector.similarity(vectors.get(leaderId)), leaderId);
-            }
+        //score followers against all leaders in parallel, keep the first preferred leaders
+        int[][] preferences = new int[unusedDocIds.size()][];
+        IntStream followers = IntStream.range(0, unusedDocIds.size());
+        (parallelBuild ? followers.parallel() : followers).forEach(i -> {
+            int[] ranking = rankLeaders(vectors, vectors.get(unusedDocIds.get(i)), leaderIds);
+            preferences[i] = ranking.length > KEPT_PREFERENCES ? Arrays.copyOf(ranking, KEPT_PREFERENCES) : ranking;
+        });
+
+        //build clusters with all unused documents, in document order so that a seed always gives the same clusters
+        for (int i = 0; i < unusedDocIds.size(); i++) {
+            int followerId = unusedDocIds.get(i);
+            if(!addToCluster(clusters, maxClusterSize, followerId, preferences[i]) && preferences[i].length < leaderIds.length)
+                addToCluster(clusters, maxClusterSize, followerId, rankLeaders(vectors, vectors.get(followerId), leaderIds));
+        }
+        return clusters;
+    }
 
-            for (Double similarity : mostSimilarLeaders.keySet()) {
-                TreeSet<Integer> cluster = clusters.get(mostSimilarLeaders.get(similarity));
-                if(cluster.size() < MAX_CLUSTER_SIZE) {
-                    cluster.add(followerId);
-                    break;
-                }
+    /**
+     * Leaders in the order their clusters are offered a follower:
+     * ascending similarity, as before, with ties resolved by the smaller leader id.
+     */
+    private static int[] rankLeaders(ArrayList<DocumentVector> vectors, DocumentVector followerVector, int[] leaderIds) {
+        double[] similarities = new double[leaderIds.length];
+        for (int i = 0; i < leaderIds.length; i++) {
+            similarities[i] = followerVector.similarity(vectors.get(leaderIds[i]));
+        }
+
+        Integer[] order = new Integer[leaderIds.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> {
+            int cmp = Double.compare(similarities[a], similarities[b]);
+            return cmp != 0 ? cmp : Integer.compare(leaderIds[a], leaderIds[b]);
+        });
+
+        int[] ranking = new int[leaderIds.length];
+        for (int i = 0; i < order.length; i++) ranking[i] = leaderIds[order[i]];
+        return ranking;
+    }
+
+    private static boolean addToCluster(HashMap<Integer, SortedSet<Integer>> clusters, int maxClusterSize, int followerId, int[] ranking) {
+        for (int leaderId : ranking) {
+            SortedSet<Integer> cluster = clusters.get(leaderId);
+            if(cluster.size() < maxClusterSize) {
+                cluster.add(followerId);
+                return true;
             }
         }
+        return false;
     }
 
     public ArrayList<String> findWithQuery(String query) {
+        return queryCache.get(query, this::search);
+    }
+
+    private ArrayList<String> search(String query) {
+        ArrayList<String> result = new ArrayList<>();
+        for (SearchHit hit : findHits(query, RESULT_SIZE)) {
+            result.add(hit.toString());
+        }
+        return result;
+    }
+
+    /**
+     * The k most relevant documents of the query found through the clusters, best first.
+     * Unlike {@link #findWithQuery(String)} it always searches, the result cache is not used.
+     */
+    public ArrayList<SearchHit> findHits(String query, int k) {
+        if(k < 1)
+            throw new IllegalArgumentException("Invalid result size = " + k);
+
+        QueryEvent event = new QueryEvent();
+        event.begin();
+        long start = metrics.start();
+
         query = query.trim().toLowerCase();
-        if(!query.matches("[a-z]+(\\s+[a-z]+)*"))
+        if(!query.matches("[a-z]+(\\s+[a-z]+)*")) {
+            endQuery(event, start, CLUSTER_QUERIES, query, k, 0, 0, 0, 0);
             return new ArrayList<>();
+        }
 
         String[] queryTerms = query.split("\\s+");
+        //one index for the whole query, a build may publish the next one meanwhile
+        IndexSnapshot index = this.index;
+        int candidatesScored = index.leaders.size();
 
+        //working maps are local, queries share nothing but the snapshot
         TreeMap<Double, TreeSet<Integer>> mostRelevantLeaders = new TreeMap<>();
-        for (Integer leaderId : leaders) {
-            double leaderRelevance = getDocumentRelevance(queryTerms, leaderId);
+        for (Integer leaderId : index.leaders) {
+            double leaderRelevance = getDocumentRelevance(index, queryTerms, leaderId);
 
             if(!mostRelevantLeaders.containsKey(leaderRelevance))
                 mostRelevantLeaders.put(leaderRelevance, new TreeSet<>());
@@ -216,25 +465,28 @@ public class Clustering {
 
         TreeMap<Float, TreeSet<Integer>> resultIds = new TreeMap<>();
         int resultsCount = 0;
-        while(resultsCount < RESULT_SIZE) {
+        //no leaders at all in the empty index served until the first build
+        while(resultsCount < k && !mostRelevantLeaders.isEmpty()) {
             Double firstKey = mostRelevantLeaders.firstKey();
             if(mostRelevantLeaders.get(firstKey).isEmpty()) mostRelevantLeaders.remove(firstKey);
             if(mostRelevantLeaders.isEmpty()) break;
 
             TreeSet<Integer> firstLeadersSet = mostRelevantLeaders.get(mostRelevantLeaders.firstKey());
             Integer firstCandidateId = firstLeadersSet.first();
-            TreeSet<Integer> cluster = clusters.get(firstCandidateId);
+            SortedSet<Integer> cluster = index.clusters.get(firstCandidateId);
             firstLeadersSet.remove(firstCandidateId);
 
             TreeMap<Double, TreeSet<Integer>> mostRelevantDocuments = new TreeMap<>();
             for (Integer documentId : cluster) {
-                double documentRelevance = getDocumentRelevance(queryTerms, documentId);
+                double documentRelevance = getDocumentRelevance(index, queryTerms, documentId);
 
                 if(!mostRelevantDocuments.containsKey(documentRelevance))
                     mostRelevantDocuments.put(documentRelevance, new TreeSet<>());
 
                 mostRelevantDocuments.get(documentRelevance).add(documentId);
             }
+            candidatesScored += cluster.size();
+
             for (Double documentRelevance : mostRelevantDocuments.keySet()) {
                 for (Integer documentId : mostRelevantDocuments.get(documentRelevance)) {
                     float resultRelevance = (float)documentRelevance.doubleValue();
@@ -245,38 +497,214 @@ public class Clustering {
                     resultIds.get(resultRelevance).add(documentId);
                     resultsCount++;
 
-                    if(resultsCount >= RESULT_SIZE)
+                    if(resultsCount >= k)
                         break;
                 }
-                if(resultsCount >= RESULT_SIZE)
+                if(resultsCount >= k)
                     break;
             }
         }
 
-        ArrayList<String> result = new ArrayList<>();
-        for (Float resultRelevance : resultIds.keySet()) {
-            for (Integer resultId : resultIds.get(resultRelevance)) {
-                result.add(0, resultId + ". " + documents.get(resultId).getTitle() + " (relevance = " + resultRelevance + ")");
+        //best first, equal relevance - greater id first
+        ArrayList<SearchHit> result = new ArrayList<>();
+        for (Float resultRelevance : resultIds.descendingKeySet()) {
+            for (Integer resultId : resultIds.get(resultRelevance).descendingSet()) {
+                result.add(new SearchHit(resultId, index.title(resultId), resultRelevance));
             }
         }
 
+        endQuery(event, start, CLUSTER_QUERIES, query, k, queryTerms.length, index.leaders.size(), candidatesScored, result.size());
         return result;
     }
 
-    private double getDocumentRelevance(String[] queryTerms, Integer documentId) {
+    /**
+     * Ends a search: commits its JFR event if it is recorded and adds it to the metrics if they are enabled.
+     */
+    private void endQuery(QueryEvent event, long start, QueryMetrics engine, String query, int k, int terms,
+                          int leadersProbed, int candidatesScored, int results) {
+        event.end();
+        if(event.shouldCommit()) {
+            event.engine = engine.engine;
+            event.query = query;
+            event.k = k;
+            event.terms = terms;
+            event.leadersProbed = leadersProbed;
+            event.candidatesScored = candidatesScored;
+            event.results = results;
+            event.commit();
+        }
+
+        if(start != 0) {
+            metrics.record(engine.seconds, start);
+            metrics.increment(engine.queries);
+            metrics.add(engine.leadersProbed, leadersProbed);
+            metrics.add(engine.candidatesScored, candidatesScored);
+        }
+    }
+
+    private static double getDocumentRelevance(IndexSnapshot index, String[] queryTerms, Integer documentId) {
         double documentRelevance = 0;
         for (String queryTerm : queryTerms) {
-            Integer queryTermId = termIds.get(queryTerm);
-            if(queryTermId != null) {
-                Double queryTermWeight = vectors.get(documentId).getTermWight(queryTermId);
-                if(queryTermWeight != null) {
-                    documentRelevance += queryTermWeight;
-                }
+            int queryTermId = index.dictionary.id(queryTerm);
+            if(queryTermId >= 0) {
+                documentRelevance += index.vectors.get(documentId).getTermWight(queryTermId);
             }
         }
         return documentRelevance;
     }
 
+    /**
+     * Writes the built index as a binary snapshot that {@link #load(Path)} restores without parsing any book.
+     * <p>
+     * Layout (big-endian):
+     * <pre>
+     * header     : magic | version | seed | documentsCount
+     * titles     : per document int(length) UTF-8 bytes (-1 for no title)
+     * sources    : per document int(length) UTF-8 path bytes | length | lastModified
+     * dictionary : int(size) | term dictionary
+     * vectors    : per document size | euclidLength | int[size] term ids | double[size] weights
+     * clusters   : leadersCount | per leader id | followersCount | int[followersCount] ids
+     * </pre>
+     */
+    public void save(Path path) throws IOException {
+        IndexSnapshot index = this.index;
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(index.seed);
+            out.writeInt(index.vectors.size());
+
+            for (int docId = 0; docId < index.vectors.size(); docId++) {
+                writeString(out, index.title(docId));
+            }
+
+            for (Source source : index.sources) {
+                writeString(out, source.path);
+                out.writeLong(source.length);
+                out.writeLong(source.lastModified);
+            }
+
+            out.writeInt((int)index.dictionary.sizeInBytes());
+            index.dictionary.writeTo(out);
+
+            for (DocumentVector vector : index.vectors) {
+                vector.writeTo(out);
+            }
+
+            out.writeInt(index.leaders.size());
+            for (Integer leaderId : index.leaders) {
+                SortedSet<Integer> cluster = index.clusters.get(leaderId);
+                out.writeInt(leaderId);
+                out.writeInt(cluster.size());
+                for (Integer followerId : cluster) {
+                    out.writeInt(followerId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Restores an index written with {@link #save(Path)}: the same vectors and clusters, so queries
+     * give the same results as the saved index. The dictionary stays in the mapped file.
+     * The restored index has no documents, a later build starts over from the added ones.
+     */
+    public static Clustering load(Path path) throws IOException {
+        MappedByteBuffer buffer;
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        try {
+            if(buffer.getInt() != SNAPSHOT_MAGIC)
+                throw new IOException("Not a clustering snapshot");
+            int version = buffer.getInt();
+            if(version != SNAPSHOT_VERSION)
+                throw new IOException("Unsupported clustering snapshot version " + version);
+
+            Clustering clustering = new Clustering();
+            clustering.seed = buffer.getLong();
+            int documentsCount = buffer.getInt();
+
+            String[] titles = new String[documentsCount];
+            for (int docId = 0; docId < documentsCount; docId++) {
+                titles[docId] = readString(buffer);
+            }
+
+            Source[] sources = new Source[documentsCount];
+            for (int docId = 0; docId < documentsCount; docId++) {
+                sources[docId] = new Source(readString(buffer), buffer.getLong(), buffer.getLong());
+            }
+
+            int dictionarySize = buffer.getInt();
+            TermDictionary dictionary = TermDictionary.open(buffer.slice(buffer.position(), dictionarySize));
+            buffer.position(buffer.position() + dictionarySize);
+
+            ArrayList<DocumentVector> vectors = new ArrayList<>(documentsCount);
+            for (int docId = 0; docId < documentsCount; docId++) {
+                vectors.add(DocumentVector.readFrom(buffer));
+            }
+
+            HashMap<Integer, SortedSet<Integer>> clusters = new HashMap<>();
+            int leadersCount = buffer.getInt();
+            for (int l = 0; l < leadersCount; l++) {
+                int leaderId = buffer.getInt();
+                TreeSet<Integer> cluster = new TreeSet<>();
+                for (int followersCount = buffer.getInt(); followersCount > 0; followersCount--) {
+                    cluster.add(buffer.getInt());
+                }
+                clusters.put(leaderId, cluster);
+            }
+
+            clustering.index = new IndexSnapshot(clustering.seed, titles, sources, dictionary, vectors, clusters);
+            return clustering;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new IOException("Corrupted clustering snapshot", e);
+        }
+    }
+
+    /**
+     * Whether the index was built from exactly the .fb2 books of the directory, with the lengths
+     * and modification times they had when they were parsed; a loaded snapshot keeps them.
+     * Added, removed, renamed and changed books all make it out of date.
+     */
+    public boolean isUpToDate(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".fb2"));
+        if(files == null) return false;
+
+        HashMap<String, File> filesByPath = new HashMap<>();
+        for (File file : files) {
+            filesByPath.put(Source.path(file), file);
+        }
+
+        Source[] sources = index.sources;
+        for (Source source : sources) {
+            File file = filesByPath.get(source.path);
+            if(file == null || file.length() != source.length || file.lastModified() != source.lastModified)
+                return false;
+        }
+        return sources.length == filesByPath.size();
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if(s == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if(length < 0) return null;
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
     public void saveToFile(File file) {
         try(BufferedWriter bw = new BufferedWriter(new FileWriter(file))) {
             bw.write(toString());
@@ -287,69 +715,113 @@ public class Clustering {
 
     @Override
     public String toString() {
+        IndexSnapshot index = this.index;
         StringBuilder sb = new StringBuilder();
 
-        for (Integer leaderId : clusters.keySet()) {
+        for (Integer leaderId : index.clusters.keySet()) {
             sb.append("-----\n")
                     .append("(Leader) ")
-                    .append(documents.get(leaderId).getTitle())
+                    .append(index.title(leaderId))
                     .append("\n");
 
-            for (Integer followerId : clusters.get(leaderId))
+            for (Integer followerId : index.clusters.get(leaderId))
                 sb.append(followerId)
                         .append(". ")
-                        .append(documents.get(followerId).getTitle())
+                        .append(index.title(followerId))
                         .append("\n");
         }
 
         return sb.toString();
     }
-}
 
-class DocumentVector {
-    private final HashMap<Integer, Double> vector;
-    private double euclidLength;
+    /**
+     * File of a document: its path, length and modification time when it was parsed.
+     */
+    static final class Source {
+        final String path;
+        final long length;
+        final long lastModified;
 
-    DocumentVector() {
-        vector = new HashMap<>();
-    }
+        Source(File file) {
+            this(path(file), file.length(), file.lastModified());
+        }
 
-    double similarity(DocumentVector other) {
-        double res = 0;
-        for (Integer termId : vector.keySet()) {
-            if(other.containsTerm(termId)) {
-                res += getTermWight(termId) * other.getTermWight(termId);
-            }
+        Source(String path, long length, long lastModified) {
+            this.path = path;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        //the same book whatever the working directory and the path it was added with
+        static String path(File file) {
+            return file.getAbsoluteFile().toPath().normalize().toString();
         }
-        res /= (getEuclidLength() * other.getEuclidLength());
+    }
 
-        return res;
+    /**
+     * Metrics series of the queries of one engine.
+     */
+    private static final class QueryMetrics {
+        final String engine;
+        final String queries;
+        final String seconds;
+        final String leadersProbed;
+        final String candidatesScored;
+
+        QueryMetrics(String engine) {
+            String labels = "{engine=\"" + engine + "\"}";
+            this.engine = engine;
+            queries = "clustering_queries_total" + labels;
+            seconds = "clustering_query_seconds" + labels;
+            leadersProbed = "clustering_query_leaders_probed_total" + labels;
+            candidatesScored = "clustering_query_candidates_scored_total" + labels;
+        }
     }
+}
+
+class Postings {
+    //document ids (ascending) and term frequencies
+    private int[] docIds;
+    private int[] freqs;
+    private int size;
 
-    void put(int termId, double termWeight) {
-        vector.put(termId, termWeight);
+    Postings() {
+        docIds = new int[4];
+        freqs = new int[4];
+        size = 0;
     }
 
-    void computeLength() {
-        euclidLength = 0;
-        for (Double termWeight : vector.values()) {
-            euclidLength += Math.pow(termWeight, 2);
+    //documents are processed in ascending id order
+    void increment(int docId) {
+        if(size > 0 && docIds[size - 1] == docId) {
+            freqs[size - 1]++;
+            return;
         }
-        euclidLength = Math.sqrt(euclidLength);
+
+        if(size == docIds.length) {
+            docIds = Arrays.copyOf(docIds, size * 2);
+            freqs = Arrays.copyOf(freqs, size * 2);
+        }
+        docIds[size] = docId;
+        freqs[size] = 1;
+        size++;
     }
 
-    boolean containsTerm(int termId) {
-        return vector.containsKey(termId);
+    //index of the first posting with a document id >= docId
+    int lowerBound(int docId) {
+        int index = Arrays.binarySearch(docIds, 0, size, docId);
+        return index >= 0 ? index : -index - 1;
     }
 
-    Double getTermWight(int termId) {
-        if(!containsTerm(termId))
-            return null;
+    int size() {
+        return size;
+    }
 
-        return vector.get(termId);
+    int docId(int i) {
+        return docIds[i];
     }
 
-    double getEuclidLength() {
-        return euclidLength;
+    int freq(int i) {
+        return freqs[i];
     }
 }
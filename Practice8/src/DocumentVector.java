@@ -0,0 +1,176 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+class DocumentVector {
+    //lengths ratio from which similarity gallops through the longer vector
+    private static final int GALLOP_RATIO = 8;
+
+    //term ids (ascending once the vector is complete) and their weights
+    private int[] termIds;
+    private double[] weights;
+    private int size;
+    private double euclidLength;
+
+    DocumentVector() {
+        termIds = new int[8];
+        weights = new double[8];
+        size = 0;
+    }
+
+    /**
+     * Writes the completed vector: size, length, term ids, weights.
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(size);
+        out.writeDouble(euclidLength);
+        for (int i = 0; i < size; i++) {
+            out.writeInt(termIds[i]);
+        }
+        for (int i = 0; i < size; i++) {
+            out.writeDouble(weights[i]);
+        }
+    }
+
+    /**
+     * Reads a vector written with {@link #writeTo(DataOutputStream)} at the position of the buffer
+     * and moves the position after it.
+     */
+    static DocumentVector readFrom(ByteBuffer buffer) {
+        DocumentVector vector = new DocumentVector();
+        vector.size = buffer.getInt();
+        vector.euclidLength = buffer.getDouble();
+        vector.termIds = new int[vector.size];
+        vector.weights = new double[vector.size];
+
+        //bulk copies out of the (mapped) buffer
+        buffer.asIntBuffer().get(vector.termIds);
+        buffer.position(buffer.position() + vector.size * Integer.BYTES);
+        buffer.asDoubleBuffer().get(vector.weights);
+        buffer.position(buffer.position() + vector.size * Double.BYTES);
+        return vector;
+    }
+
+    double similarity(DocumentVector other) {
+        DocumentVector shorter = size <= other.size ? this : other;
+        DocumentVector longer = shorter == this ? other : this;
+
+        double res = longer.size / GALLOP_RATIO > shorter.size
+                ? gallopingDotProduct(shorter, longer)
+                : mergeDotProduct(shorter, longer);
+        res /= (getEuclidLength() * other.getEuclidLength());
+
+        return res;
+    }
+
+    private static double mergeDotProduct(DocumentVector a, DocumentVector b) {
+        double res = 0;
+        int i = 0, j = 0;
+        while(i < a.size && j < b.size) {
+            int termA = a.termIds[i];
+            int termB = b.termIds[j];
+            if(termA < termB) i++;
+            else if(termA > termB) j++;
+            else res += a.weights[i++] * b.weights[j++];
+        }
+        return res;
+    }
+
+    private static double gallopingDotProduct(DocumentVector shorter, DocumentVector longer) {
+        double res = 0;
+        int j = 0;
+        for (int i = 0; i < shorter.size && j < longer.size; i++) {
+            int termId = shorter.termIds[i];
+
+            //exponential search for the range, then binary search inside it
+            int bound = 1;
+            while(j + bound < longer.size && longer.termIds[j + bound] < termId) bound <<= 1;
+            int index = Arrays.binarySearch(longer.termIds, j + (bound >> 1), Math.min(j + bound + 1, longer.size), termId);
+
+            if(index >= 0) {
+                res += shorter.weights[i] * longer.weights[index];
+                j = index + 1;
+            }
+            else {
+                j = -index - 1;
+            }
+        }
+        return res;
+    }
+
+    void put(int termId, double termWeight) {
+        if(size == termIds.length) {
+            termIds = Arrays.copyOf(termIds, size * 2);
+            weights = Arrays.copyOf(weights, size * 2);
+        }
+        termIds[size] = termId;
+        weights[size] = termWeight;
+        size++;
+    }
+
+    /**
+     * Completes the vector once all weights are put: sorts it by term id and computes its length.
+     */
+    void computeLength() {
+        sortByTermId();
+
+        euclidLength = 0;
+        for (int i = 0; i < size; i++) {
+            euclidLength += weights[i] * weights[i];
+        }
+        euclidLength = Math.sqrt(euclidLength);
+    }
+
+    private void sortByTermId() {
+        boolean sorted = true;
+        for (int i = 1; i < size && sorted; i++) {
+            sorted = termIds[i - 1] < termIds[i];
+        }
+
+        if(!sorted) {
+            //term id in the high half, position in the low half
+            long[] keys = new long[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = (long)termIds[i] << 32 | i;
+            }
+            Arrays.sort(keys);
+
+            int[] sortedTermIds = new int[size];
+            double[] sortedWeights = new double[size];
+            for (int i = 0; i < size; i++) {
+                sortedTermIds[i] = (int)(keys[i] >>> 32);
+                sortedWeights[i] = weights[(int)keys[i]];
+            }
+            termIds = sortedTermIds;
+            weights = sortedWeights;
+        }
+        else if(termIds.length != size) {
+            termIds = Arrays.copyOf(termIds, size);
+            weights = Arrays.copyOf(weights, size);
+        }
+    }
+
+    boolean containsTerm(int termId) {
+        return Arrays.binarySearch(termIds, 0, size, termId) >= 0;
+    }
+
+    /**
+     * @return weight of the term or 0 if the document does not contain it.
+     */
+    double getTermWight(int termId) {
+        int index = Arrays.binarySearch(termIds, 0, size, termId);
+        return index >= 0 ? weights[index] : 0;
+    }
+
+    double getEuclidLength() {
+        return euclidLength;
+    }
+
+    //estimated heap size with the arrays as they are, trimmed once the vector is complete
+    long sizeInBytes() {
+        return IndexSnapshot.objectBytes(2 * IndexSnapshot.REFERENCE + Integer.BYTES + Double.BYTES)
+                + IndexSnapshot.arrayBytes(termIds.length, Integer.BYTES)
+                + IndexSnapshot.arrayBytes(weights.length, Double.BYTES);
+    }
+}
@@ -0,0 +1,37 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Event;
+
+/**
+ * JFR event of one search of the index; results served from the query cache are not searches.
+ */
+@Name("clustering.Query")
+@Label("Query")
+@Category("Clustering")
+@Description("One search of the clustered index")
+final class QueryEvent extends Event {
+    @Label("Engine")
+    String engine;
+
+    @Label("Query")
+    String query;
+
+    @Label("Result Size")
+    int k;
+
+    @Label("Terms")
+    int terms;
+
+    @Label("Leaders Probed")
+    @Description("Leaders whose relevance was computed")
+    int leadersProbed;
+
+    @Label("Candidates Scored")
+    @Description("Document relevances computed, leaders included")
+    int candidatesScored;
+
+    @Label("Results")
+    int results;
+}
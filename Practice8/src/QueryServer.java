@@ -0,0 +1,287 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local HTTP server of query results, for many concurrent clients on one box.
+ * <pre>
+ * GET /search?q=red+hammer&amp;k=10&amp;engine=cluster
+ * {"engine":"cluster","query":"red hammer","k":10,"tookMicros":151,"hits":[{"id":3,"title":"...","score":1.25}]}
+ *
+ * GET /engines
+ * {"engines":["cluster"]}
+ *
+ * GET /metrics
+ * # TYPE clustering_queries_total counter
+ * clustering_queries_total{engine="cluster"} 42
+ * ...
+ * </pre>
+ * k defaults to {@value #DEFAULT_K}, the engine to the first one added. Requests run on virtual threads
+ * when the runtime has them (Java 21+), otherwise on a pool with a thread per core.
+ */
+public class QueryServer {
+    public static final int DEFAULT_PORT = 8080;
+    public static final int DEFAULT_K = 10;
+    public static final int MAX_K = 1000;
+    //pending connections, the clients beyond them wait for the kernel to accept
+    private static final int BACKLOG = 4096;
+
+    /**
+     * Finds the best k documents of a query, best first.
+     * Called from many threads at once.
+     */
+    public interface Engine {
+        List<SearchHit> search(String query, int k);
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    //name -> engine, fixed once the server is started
+    private final LinkedHashMap<String, Engine> engines = new LinkedHashMap<>();
+    //served at /metrics, none until set
+    private volatile Metrics metrics;
+    private volatile boolean started;
+
+    /**
+     * Binds the server to the loopback address, port 0 picks a free one.
+     */
+    public QueryServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+
+        ExecutorService virtualExecutor = newVirtualThreadExecutor();
+        virtualThreads = virtualExecutor != null;
+        executor = virtualThreads ? virtualExecutor : Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+        server.setExecutor(executor);
+        server.createContext("/search", this::search);
+        server.createContext("/engines", this::engines);
+        server.createContext("/metrics", this::metrics);
+    }
+
+    public void addEngine(String name, Engine engine) {
+        if(started)
+            throw new IllegalStateException("Engines are added before the server starts");
+
+        engines.put(name, engine);
+    }
+
+    /**
+     * Serves the registry at /metrics in the Prometheus text format.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void start() {
+        if(engines.isEmpty())
+            throw new IllegalStateException("No engines");
+
+        started = true;
+        server.start();
+    }
+
+    /**
+     * Stops accepting connections, lets the requests in progress finish for up to graceSeconds, then stops.
+     */
+    public void stop(int graceSeconds) {
+        server.stop(graceSeconds);
+
+        executor.shutdown();
+        try {
+            if(!executor.awaitTermination(graceSeconds, TimeUnit.SECONDS))
+                executor.shutdownNow();
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    private void search(HttpExchange exchange) throws IOException {
+        try {
+            if(!"GET".equals(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "Only GET is supported");
+                return;
+            }
+
+            HashMap<String, String> params;
+            try {
+                params = parseParams(exchange.getRequestURI().getRawQuery());
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, 400, "Malformed parameters");
+                return;
+            }
+
+            String query = params.get("q");
+            if(query == null) {
+                sendError(exchange, 400, "Missing parameter q");
+                return;
+            }
+
+            int k = DEFAULT_K;
+            if(params.containsKey("k")) {
+                try {
+                    k = Integer.parseInt(params.get("k"));
+                } catch (NumberFormatException e) {
+                    k = -1;
+                }
+                if(k < 1 || k > MAX_K) {
+                    sendError(exchange, 400, "k must be in 1.." + MAX_K);
+                    return;
+                }
+            }
+
+            String engineName = params.getOrDefault("engine", engines.keySet().iterator().next());
+            Engine engine = engines.get(engineName);
+            if(engine == null) {
+                sendError(exchange, 400, "Unknown engine " + engineName);
+                return;
+            }
+
+            long start = System.nanoTime();
+            List<SearchHit> hits;
+            try {
+                hits = engine.search(query, k);
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                sendError(exchange, 400, e.getMessage());
+                return;
+            }
+            long tookMicros = (System.nanoTime() - start) / 1000;
+
+            StringBuilder json = new StringBuilder();
+            json.append("{\"engine\":").append(quote(engineName))
+                    .append(",\"query\":").append(quote(query))
+                    .append(",\"k\":").append(k)
+                    .append(",\"tookMicros\":").append(tookMicros)
+                    .append(",\"hits\":[");
+            for (int i = 0; i < hits.size(); i++) {
+                SearchHit hit = hits.get(i);
+                if(i > 0) json.append(',');
+                json.append("{\"id\":").append(hit.getDocId())
+                        .append(",\"title\":").append(quote(hit.getTitle()))
+                        .append(",\"score\":").append(Float.isFinite(hit.getScore()) ? Float.toString(hit.getScore()) : "null")
+                        .append('}');
+            }
+            json.append("]}");
+            send(exchange, 200, json.toString());
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            sendError(exchange, 500, "Internal error");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void engines(HttpExchange exchange) throws IOException {
+        try {
+            StringBuilder json = new StringBuilder("{\"engines\":[");
+            boolean first = true;
+            for (String name : engines.keySet()) {
+                if(!first) json.append(',');
+                json.append(quote(name));
+                first = false;
+            }
+            json.append("]}");
+            send(exchange, 200, json.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void metrics(HttpExchange exchange) throws IOException {
+        try {
+            Metrics metrics = this.metrics;
+            if(metrics == null) {
+                sendError(exchange, 404, "No metrics");
+                return;
+            }
+
+            byte[] bytes = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try(OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        send(exchange, status, "{\"error\":" + quote(message) + "}");
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try(OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    //name=value pairs of the URL query, decoded; the last value of a repeated name wins
+    private static HashMap<String, String> parseParams(String rawQuery) {
+        HashMap<String, String> params = new HashMap<>();
+        if(rawQuery == null) return params;
+
+        for (String pair : rawQuery.split("&")) {
+            if(pair.isEmpty()) continue;
+
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq >= 0 ? pair.substring(0, eq) : pair, StandardCharsets.UTF_8);
+            String value = eq >= 0 ? URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8) : "";
+            params.put(name, value);
+        }
+        return params;
+    }
+
+    private static String quote(String s) {
+        if(s == null) return "null";
+
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch(c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if(c < 0x20) sb.append(String.format("\\u%04x", (int)c));
+                    else sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    //Executors.newVirtualThreadPerTaskExecutor() of Java 21, null on older runtimes
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+}
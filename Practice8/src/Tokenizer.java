@@ -0,0 +1,113 @@
+/**
+ * Splits text into lower case terms, the same as {@code split("[^A-Za-z]+")} + {@code toLowerCase()}
+ * with the 1 - 20 length filter, but without a regex and without allocating per word.
+ * <p>
+ * Letters are lowercased into a reusable buffer and the term is looked up in an intern table,
+ * so the same String instance is returned every time a term repeats; a String is only created
+ * the first time a term is seen. Not thread-safe, one tokenizer per indexing thread.
+ */
+final class Tokenizer {
+    static final int MAX_TERM_LENGTH = 20;
+
+    private final char[] buffer = new char[MAX_TERM_LENGTH];
+    private CharSequence text;
+    private int position;
+
+    //interned terms, open addressing with linear probing
+    private String[] terms = new String[1024];
+    private int[] hashes = new int[1024];
+    private int size;
+
+    /**
+     * Starts tokenizing a new text.
+     */
+    void reset(CharSequence text) {
+        this.text = text;
+        position = 0;
+    }
+
+    /**
+     * Returns the next term of the text, or null at its end.
+     */
+    String next() {
+        if(text == null) return null;
+
+        int length = 0;
+        int hash = 0;
+        for (int n = text.length(); position <= n; position++) {
+            char c = position < n ? text.charAt(position) : ' ';
+            if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+                if(length < MAX_TERM_LENGTH) {
+                    c |= 0x20;
+                    buffer[length] = c;
+                    hash = 31 * hash + c;
+                }
+                length++;
+            }
+            else if(length > 0) {
+                if(length <= MAX_TERM_LENGTH) {
+                    position++;
+                    return intern(length, hash);
+                }
+                length = 0;
+                hash = 0;
+            }
+        }
+
+        text = null;
+        return null;
+    }
+
+    /**
+     * Returns the number of distinct terms seen.
+     */
+    int size() {
+        return size;
+    }
+
+    private String intern(int length, int hash) {
+        int mask = terms.length - 1;
+        int slot = mix(hash) & mask;
+        while(terms[slot] != null) {
+            if(hashes[slot] == hash && matches(terms[slot], length)) return terms[slot];
+            slot = (slot + 1) & mask;
+        }
+
+        String term = new String(buffer, 0, length);
+        terms[slot] = term;
+        hashes[slot] = hash;
+        if(++size * 2 > terms.length) rehash();
+        return term;
+    }
+
+    private boolean matches(String term, int length) {
+        if(term.length() != length) return false;
+
+        for (int i = 0; i < length; i++) {
+            if(term.charAt(i) != buffer[i]) return false;
+        }
+        return true;
+    }
+
+    private void rehash() {
+        String[] oldTerms = terms;
+        int[] oldHashes = hashes;
+        terms = new String[oldTerms.length * 2];
+        hashes = new int[oldTerms.length * 2];
+
+        int mask = terms.length - 1;
+        for (int i = 0; i < oldTerms.length; i++) {
+            if(oldTerms[i] == null) continue;
+
+            int slot = mix(oldHashes[i]) & mask;
+            while(terms[slot] != null) slot = (slot + 1) & mask;
+            terms[slot] = oldTerms[i];
+            hashes[slot] = oldHashes[i];
+        }
+    }
+
+    //String hashes of short words differ mostly in the low bits
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
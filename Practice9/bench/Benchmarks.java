@@ -0,0 +1,86 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Benchmarks of the Cranfield clustering: tokenization and vector similarity, then build and the
+ * evaluation queries (one by one and batched) on the Cranfield collection and on synthetic collections. Run from the module directory:
+ * <pre>
+ * java -cp out -Dbench.time=500 Benchmarks [name filter]
+ * </pre>
+ */
+public class Benchmarks {
+    private static final long SEED = 42;
+    private static final int[] SYNTHETIC_DOCUMENTS = {5_600, 22_400};
+
+    public static void main(String[] args) throws Exception {
+        Benchmark benchmark = new Benchmark(args);
+
+        File documentsFile = new File("src/cranfield/cran.all.1400");
+        File queriesFile = new File("src/cranfield/cran.qry");
+        File relevanceFile = new File("src/cranfield/cranqrel");
+
+        //micro
+        CranfieldReader reader = new CranfieldReader(documentsFile.toPath());
+        Tokenizer tokenizer = new Tokenizer();
+        benchmark.run("tokenize.cranfield", () -> {
+            int[] terms = {0};
+            reader.read((line, docId) -> {
+                tokenizer.reset(line);
+                while(tokenizer.next() != null) terms[0]++;
+            });
+            return terms[0];
+        });
+
+        Random random = new Random(SEED);
+        DocumentVector[] merge = {vector(random, 300), vector(random, 300)};
+        benchmark.run("similarity.merge.300x300", () -> merge[0].similarity(merge[1]));
+        DocumentVector[] gallop = {vector(random, 30), vector(random, 5000)};
+        benchmark.run("similarity.gallop.30x5000", () -> gallop[0].similarity(gallop[1]));
+
+        //macro, Cranfield
+        macro(benchmark, "cranfield", documentsFile, queriesFile, relevanceFile);
+
+        //macro, synthetic collections with the Cranfield queries
+        for (int count : SYNTHETIC_DOCUMENTS) {
+            String name = "synthetic" + count;
+            if(!benchmark.enabled(macroNames(name))) continue;
+
+            Path file = Files.createTempFile("bench-cranfield", ".all");
+            new SyntheticCorpus(SEED).writeCranfield(file, count, 120);
+            macro(benchmark, name, file.toFile(), queriesFile, relevanceFile);
+            Files.delete(file);
+        }
+    }
+
+    private static void macro(Benchmark benchmark, String corpus, File documentsFile, File queriesFile, File relevanceFile) throws Exception {
+        if(!benchmark.enabled(macroNames(corpus))) return;
+
+        Clustering clustering = new Clustering();
+        clustering.setSeed(SEED);
+        clustering.setDataCranfield(documentsFile, queriesFile, relevanceFile);
+
+        benchmark.run("build." + corpus, 2, 5, () -> {
+            clustering.build();
+            return clustering;
+        });
+
+        //all 225 queries per operation, one by one and as a batch
+        clustering.build();
+        benchmark.run("evaluate." + corpus, () -> clustering.evaluate(10));
+        benchmark.run("fdegree.batch." + corpus, () -> clustering.getFDegree(10));
+    }
+
+    private static String[] macroNames(String corpus) {
+        return new String[] {"build." + corpus, "evaluate." + corpus, "fdegree.batch." + corpus};
+    }
+
+    //term ids spread over a vocabulary of 100 000 terms
+    private static DocumentVector vector(Random random, int size) {
+        DocumentVector vector = new DocumentVector();
+        random.ints(0, 100_000).distinct().limit(size).forEach(termId -> vector.put(termId, 1 + random.nextDouble()));
+        vector.computeLength();
+        return vector;
+    }
+}
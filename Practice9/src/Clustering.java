@@ -1,76 +1,86 @@
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.LongSupplier;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 
 public class Clustering {
-    private static int RESULT_SIZE = 10;
-    private static int MAX_CLUSTER_SIZE;
-
-    //documents' ids
-    private final ArrayList<String> documents;
+    //results per query unless the evaluation asks for another cutoff
+    private static final int RESULT_SIZE = 10;
+    //preferred leaders kept per follower, the rest is ranked again only if all of their clusters are full
+    private static final int KEPT_PREFERENCES = 8;
+
+    //well-formed queries and the spaces between their terms, compiled once
+    private static final Pattern QUERY_PATTERN = Pattern.compile("[a-z]+(\\s+[a-z]+)*");
+    private static final Pattern SPACES = Pattern.compile("\\s+");
+
+    static final int SNAPSHOT_MAGIC = 0x434C5354; // "CLST"
+    static final int SNAPSHOT_VERSION = 2;
+
+    //metrics series
+    static final String BUILDS = "clustering_builds_total";
+    static final String BUILD_SECONDS = "clustering_build_seconds";
+    static final String STAGE_SECONDS = "clustering_build_stage_seconds";
+    static final String BATCHES = "clustering_query_batches_total";
+    static final String BATCH_SECONDS = "clustering_query_batch_seconds";
+    static final String HEAP_BYTES = "clustering_index_heap_bytes";
+    private static final QueryMetrics CLUSTER_QUERIES = new QueryMetrics("cluster");
+    private static final QueryMetrics BATCH_QUERIES = new QueryMetrics("batch");
+
+    //Cranfield collection, streamed into the index by every build
+    private volatile File documentsFile;
     //queries' ids
     private final ArrayList<String> queries;
     //query -> relevant documents
-    private final HashMap<Integer, ArrayList<Integer>> relevances;
+    private final HashMap<Integer, BitSet> relevances;
+    //the collection, queries and relevance files as they were when set
+    private volatile Source[] sources = new Source[0];
+
+    //the built index, queries read it without locks and every build publishes a new one
+    private volatile IndexSnapshot index;
 
+    //one build at a time, the build state below is only touched under this lock
+    private final Object buildLock = new Object();
     //inverted index (tf(t,d) + idf(t))
-    private HashMap<String, HashMap<Integer, Integer>> termFreq;
-    //term ids (dictionary)
-    private HashMap<String, Integer> termIds;
-    private int freeId;
+    private HashMap<String, Postings> termFreq;
+    //splits the documents while building
+    private Tokenizer tokenizer;
 
-    //documents' vectors
-    private ArrayList<DocumentVector> vectors;
-    //leaders documents' ids
-    private TreeSet<Integer> leaders;
-    //clusters (leader -> followers)
-    private HashMap<Integer, TreeSet<Integer>> clusters;
+    //build document vectors and score followers on all cores
+    private volatile boolean parallelBuild = true;
+    //leaders selection
+    private volatile long seed = new Random().nextLong();
+    //timings and counters of builds and queries
+    private final Metrics metrics = new Metrics();
 
 
     public Clustering() {
-        termFreq = new HashMap<>();
-        termIds = new HashMap<>();
-        freeId = 0;
-        documents = new ArrayList<>();
         queries = new ArrayList<>();
         relevances = new HashMap<>();
-        vectors = new ArrayList<>();
-        leaders = new TreeSet<>();
-        clusters = new HashMap<>();
+        index = IndexSnapshot.EMPTY;
+
+        metrics.gauge("clustering_documents", () -> index.vectors.size());
+        metrics.gauge("clustering_terms", () -> index.dictionary.size());
+        metrics.gauge("clustering_leaders", () -> index.leaders.size());
+        for (String structure : IndexSnapshot.STRUCTURES) {
+            metrics.gauge(HEAP_BYTES + "{structure=\"" + structure + "\"}", () -> index.heapUsage.get(structure));
+        }
     }
 
     public void setDataCranfield(File documentsFile, File queriesFile, File relevanceFile) {
-        //documents
-        try (BufferedReader br = new BufferedReader(new FileReader(documentsFile))) {
-            String s = br.readLine();
-
-            while (s != null && s.startsWith(".I")) {
-                br.readLine();
-                StringBuilder document = new StringBuilder();
-
-                s = br.readLine();
-                while (!s.startsWith(".")) {
-                    document.append(s).append(" ");
-                    s = br.readLine();
-                }
-
-                while(!s.startsWith(".W")) {
-                    s = br.readLine();
-                }
-
-                s = br.readLine();
-                while (s != null && !s.startsWith(".")) {
-                    document.append(s).append(" ");
-                    s = br.readLine();
-                }
-
-                documents.add(document.toString());
+        //before reading, a change made meanwhile makes the index out of date
+        sources = new Source[] {new Source(documentsFile), new Source(queriesFile), new Source(relevanceFile)};
 
-                while(s != null && !s.startsWith(".I"))
-                    s = br.readLine();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        //documents, read while building
+        this.documentsFile = documentsFile;
 
         //queries
         try (BufferedReader br = new BufferedReader(new FileReader(queriesFile))) {
@@ -108,9 +118,9 @@ public class Clustering {
                 int documentId = Integer.parseInt(split[1]) - 1;
 
                 if(!relevances.containsKey(queryId))
-                    relevances.put(queryId, new ArrayList<>());
+                    relevances.put(queryId, new BitSet());
 
-                relevances.get(queryId).add(documentId);
+                relevances.get(queryId).set(documentId);
 
                 s = br.readLine();
             }
@@ -119,76 +129,193 @@ public class Clustering {
         }
     }
 
-    public void build() {
-        //reset
-        MAX_CLUSTER_SIZE = (int)Math.round(Math.sqrt(documents.size())) + 1;
-        termFreq = new HashMap<>();
-        termIds = new HashMap<>();
-        freeId = 0;
-        vectors = new ArrayList<>();
-        leaders = new TreeSet<>();
-        clusters = new HashMap<>();
+    public void setParallelBuild(boolean parallelBuild) {
+        this.parallelBuild = parallelBuild;
+    }
 
-        //process
-        for (int docId = 0; docId < documents.size(); docId++) {
-            processText(documents.get(docId), docId);
-        }
+    /**
+     * Sets the seed of the leaders selection, the same seed always gives the same clusters.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
 
-        //build clusters
-        buildDocumentVectors();
-        buildClusters();
+    public long getSeed() {
+        return seed;
     }
 
-    private void processText(String text, int docId) {
-        if(text == null) return;
+    /**
+     * Counters and latency histograms of builds and queries, {@link Metrics#scrape()} dumps them.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Estimated heap bytes of the structures of the current index by name, and their total.
+     */
+    public Map<String, Long> getHeapUsage() {
+        return index.heapUsage;
+    }
 
-        String[] terms = text.split("[^A-Za-z]+");
-        for (String term : terms) {
-            term = term.trim().toLowerCase();
-            if(term.length() != 0 && term.length() <= 20) {
-                //1
-                if(!termIds.containsKey(term)) {
-                    termIds.put(term, freeId++);
+    /**
+     * Builds a new index of the Cranfield collection and publishes it when it is complete.
+     * Queries running meanwhile keep using the previous index, builds are serialized.
+     */
+    public void build() {
+        synchronized(buildLock) {
+            BuildStageEvent buildEvent = new BuildStageEvent();
+            buildEvent.begin();
+            long buildStart = metrics.start();
+
+            File documentsFile = this.documentsFile;
+            long seed = this.seed;
+
+            termFreq = new HashMap<>();
+            tokenizer = new Tokenizer();
+
+            //process, the lines of the collection go straight to the tokenizer
+            BuildStageEvent event = new BuildStageEvent();
+            event.begin();
+            long start = metrics.start();
+            int documentsCount = 0;
+            if(documentsFile != null) {
+                try {
+                    documentsCount = new CranfieldReader(documentsFile.toPath()).read(this::processText);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    termFreq = new HashMap<>();
+                    documentsCount = 0;
                 }
+            }
+            int N = documentsCount;
+            int termsCount = termFreq.size();
+            endStage(event, start, "tokenize", N, termsCount, () -> 0);
+
+            //build clusters
+            event = new BuildStageEvent();
+            event.begin();
+            start = metrics.start();
+            TermDictionary dictionary = TermDictionary.build(termFreq.keySet());
+            endStage(event, start, "dictionary", N, termsCount, dictionary::sizeInBytes);
+
+            event = new BuildStageEvent();
+            event.begin();
+            start = metrics.start();
+            ArrayList<DocumentVector> vectors = buildDocumentVectors(dictionary, N);
+            endStage(event, start, "vectors", N, termsCount, () -> IndexSnapshot.vectorsBytes(vectors));
+
+            event = new BuildStageEvent();
+            event.begin();
+            start = metrics.start();
+            HashMap<Integer, SortedSet<Integer>> clusters = buildClusters(vectors, seed);
+            endStage(event, start, "clusters", N, termsCount, () -> IndexSnapshot.clustersBytes(clusters));
+
+            //the postings are in the vectors now, the terms in the dictionary
+            termFreq = null;
+            tokenizer = null;
+
+            //publish
+            IndexSnapshot index = new IndexSnapshot(seed, dictionary, vectors, clusters);
+            this.index = index;
+
+            metrics.increment(BUILDS);
+            metrics.record(BUILD_SECONDS, buildStart);
+            endStage(buildEvent, 0, "build", N, termsCount, () -> index.heapUsage.get(IndexSnapshot.TOTAL));
+        }
+    }
 
-                //2
-                if(!termFreq.containsKey(term))
-                    termFreq.put(term, new HashMap<>());
+    /**
+     * Ends a build stage: commits its JFR event if it is recorded and its time if the metrics are enabled.
+     * The heap size is only estimated for a recorded event.
+     */
+    private void endStage(BuildStageEvent event, long start, String stage, int documents, int terms, LongSupplier heapBytes) {
+        event.end();
+        if(event.shouldCommit()) {
+            event.stage = stage;
+            event.documents = documents;
+            event.terms = terms;
+            event.heapBytes = heapBytes.getAsLong();
+            event.commit();
+        }
+
+        if(start != 0)
+            metrics.record(STAGE_SECONDS + "{stage=\"" + stage + "\"}", start);
+    }
+
+    private void processText(CharSequence text, int docId) {
+        if(text == null) return;
 
-                Integer tf = termFreq.get(term).get(docId);
-                termFreq.get(term).put(docId, tf == null ? 1 : tf + 1);
+        tokenizer.reset(text);
+        for (String term = tokenizer.next(); term != null; term = tokenizer.next()) {
+            Postings postings = termFreq.get(term);
+            if(postings == null) {
+                postings = new Postings();
+                termFreq.put(term, postings);
             }
+
+            postings.increment(docId);
         }
     }
 
-    private void buildDocumentVectors() {
-        for(int docId = 0; docId < documents.size(); docId++) {
-            DocumentVector vector = new DocumentVector();
+    private ArrayList<DocumentVector> buildDocumentVectors(TermDictionary dictionary, int N) {
+
+        //one pass over the posting lists, idf computed once per term
+        int termsCount = termFreq.size();
+        int[] ids = new int[termsCount];
+        Postings[] postings = new Postings[termsCount];
+        double[] idf = new double[termsCount];
+        int t = 0;
+        for (Map.Entry<String, Postings> entry : termFreq.entrySet()) {
+            ids[t] = dictionary.id(entry.getKey());
+            postings[t] = entry.getValue();
+            idf[t] = 1 + Math.log((double)N / postings[t].size());
+            t++;
+        }
+
+        //document ranges are independent, each one takes its part of every posting list
+        DocumentVector[] result = new DocumentVector[N];
+        int rangesCount = parallelBuild ? Math.min(N, Runtime.getRuntime().availableProcessors() * 4) : 1;
+        IntStream ranges = IntStream.range(0, rangesCount);
+        (parallelBuild ? ranges.parallel() : ranges).forEach(range -> {
+            int from = (int)((long)N * range / rangesCount);
+            int to = (int)((long)N * (range + 1) / rangesCount);
+
+            for (int docId = from; docId < to; docId++) {
+                result[docId] = new DocumentVector();
+            }
 
-            for (String term : termFreq.keySet()) {
-                if(termFreq.get(term).containsKey(docId)) {
-                    double termWeight = (1 + Math.log(termFreq.get(term).get(docId)))
-                            * (1 + Math.log((double)documents.size() / termFreq.get(term).size()));
-                    vector.put(termIds.get(term), termWeight);
+            for (int term = 0; term < termsCount; term++) {
+                Postings termPostings = postings[term];
+                for (int i = termPostings.lowerBound(from); i < termPostings.size() && termPostings.docId(i) < to; i++) {
+                    double termWeight = (1 + Math.log(termPostings.freq(i))) * idf[term];
+                    result[termPostings.docId(i)].put(ids[term], termWeight);
                 }
             }
 
-            vector.computeLength();
-            vectors.add(vector);
-        }
+            for (int docId = from; docId < to; docId++) {
+                result[docId].computeLength();
+            }
+        });
+
+        return new ArrayList<>(Arrays.asList(result));
     }
 
-    private void buildClusters() {
+    private HashMap<Integer, SortedSet<Integer>> buildClusters(ArrayList<DocumentVector> vectors, long seed) {
         //select leaders
-        int leadersCount = (int)Math.round(Math.sqrt(documents.size()));
+        int leadersCount = (int)Math.round(Math.sqrt(vectors.size()));
+        int maxClusterSize = leadersCount + 1;
 
         ArrayList<Integer> unusedDocIds = new ArrayList<>();
-        for (int i = 0; i < documents.size(); i++) {
+        for (int i = 0; i < vectors.size(); i++) {
             unusedDocIds.add(i);
         }
 
+        TreeSet<Integer> leaders = new TreeSet<>();
+        HashMap<Integer, SortedSet<Integer>> clusters = new HashMap<>();
+        Random random = new Random(seed);
         while(leaders.size() < leadersCount) {
-            int randomUnusedIndex = (int)(Math.random() * unusedDocIds.size());
+            int randomUnusedIndex = random.nextInt(unusedDocIds.size());
             int leaderId = unusedDocIds.remove(randomUnusedIndex);
             leaders.add(leaderId);
             TreeSet<Integer> cluster = new TreeSet<>();
@@ -196,63 +323,234 @@ public class Clustering {
             clusters.put(leaderId, cluster);
         }
 
-        //build clusters with all unused documents
-        for (Integer followerId : unusedDocIds) {
-            TreeMap<Double, Integer> mostSimilarLeaders = new TreeMap<>();
+        int[] leaderIds = new int[leaders.size()];
+        int l = 0;
+        for (Integer leaderId : leaders) {
+            leaderIds[l++] = leaderId;
+        }
 
-            DocumentVector followerVector = vectors.get(followerId);
-            for (Integer leaderId : leaders) {
-                mostSimilarLeaders.put(followerVector.similarity(vectors.get(leaderId)), leaderId);
+        //score followers against all leaders in parallel, keep the first preferred leaders
+        int[][] preferences = new int[unusedDocIds.size()][];
+        IntStream followers = IntStream.range(0, unusedDocIds.size());
+        (parallelBuild ? followers.parallel() : followers).forEach(i -> {
+            int[] ranking = rankLeaders(vectors, vectors.get(unusedDocIds.get(i)), leaderIds);
+            preferences[i] = ranking.length > KEPT_PREFERENCES ? Arrays.copyOf(ranking, KEPT_PREFERENCES) : ranking;
+        });
+
+        //build clusters with all unused documents, in document order so that a seed always gives the same clusters
+        for (int i = 0; i < unusedDocIds.size(); i++) {
+            int followerId = unusedDocIds.get(i);
+            if(!addToCluster(clusters, maxClusterSize, followerId, preferences[i]) && preferences[i].length < leaderIds.length)
+                addToCluster(clusters, maxClusterSize, followerId, rankLeaders(vectors, vectors.get(followerId), leaderIds));
+        }
+        return clusters;
+    }
+
+    /**
+     * Leaders in the order their clusters are offered a follower:
+     * ascending similarity, as before, with ties resolved by the smaller leader id.
+     */
+    private static int[] rankLeaders(ArrayList<DocumentVector> vectors, DocumentVector followerVector, int[] leaderIds) {
+        double[] similarities = new double[leaderIds.length];
+        for (int i = 0; i < leaderIds.length; i++) {
+            similarities[i] = followerVector.similarity(vectors.get(leaderIds[i]));
+        }
+
+        Integer[] order = new Integer[leaderIds.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> {
+            int cmp = Double.compare(similarities[a], similarities[b]);
+            return cmp != 0 ? cmp : Integer.compare(leaderIds[a], leaderIds[b]);
+        });
+
+        int[] ranking = new int[leaderIds.length];
+        for (int i = 0; i < order.length; i++) ranking[i] = leaderIds[order[i]];
+        return ranking;
+    }
+
+    private static boolean addToCluster(HashMap<Integer, SortedSet<Integer>> clusters, int maxClusterSize, int followerId, int[] ranking) {
+        for (int leaderId : ranking) {
+            SortedSet<Integer> cluster = clusters.get(leaderId);
+            if(cluster.size() < maxClusterSize) {
+                cluster.add(followerId);
+                return true;
             }
+        }
+        return false;
+    }
 
-            for (Double similarity : mostSimilarLeaders.keySet()) {
-                TreeSet<Integer> cluster = clusters.get(mostSimilarLeaders.get(similarity));
-                if(cluster.size() < MAX_CLUSTER_SIZE) {
-                    cluster.add(followerId);
-                    break;
-                }
+    private static Ranking findWithQueryCranfield(IndexSnapshot index, String query, int resultSize) {
+        String[] queryTerms = parseQuery(query);
+        if(queryTerms == null)
+            return new Ranking();
+
+        //looked up once, not once per scored document
+        int[] queryTermIds = new int[queryTerms.length];
+        for (int i = 0; i < queryTerms.length; i++) {
+            queryTermIds[i] = index.dictionary.id(queryTerms[i]);
+        }
+        //summed in term id order, the order a batch adds the leader postings in
+        Arrays.sort(queryTermIds);
+
+        Ranking ranking = rank(index, documentId -> getDocumentRelevance(index, queryTermIds, documentId), resultSize);
+        ranking.terms = queryTerms.length;
+        return ranking;
+    }
+
+    /**
+     * Finds the first k documents of each query, best first: the same results as the queries
+     * run one by one, with less work per query.
+     * <p>
+     * Every distinct term of the batch is looked up once and its leader postings are read once,
+     * adding its weights to the leader scores of all the queries that have it. The queries then run
+     * in parallel and score only the followers of the clusters they go through,
+     * as {@link #findWithQueryCranfield} does.
+     * @return document ids per query, in the order of the queries; none for a malformed query.
+     */
+    public ArrayList<ArrayList<Integer>> findWithQueries(List<String> queries, int k) {
+        if(k < 1)
+            throw new IllegalArgumentException("Invalid result size = " + k);
+
+        ArrayList<ArrayList<Integer>> result = new ArrayList<>();
+        for (Ranking ranking : findWithQueries(index, queries, k)) {
+            result.add(ranking.docIds);
+        }
+        return result;
+    }
+
+    private Ranking[] findWithQueries(IndexSnapshot index, List<String> queries, int resultSize) {
+        long batchStart = metrics.start();
+
+        //distinct terms of the batch -> term ids, -1 for the terms the index doesn't have
+        HashMap<String, Integer> termIds = new HashMap<>();
+        //query -> ids of its terms in term id order, as findWithQueryCranfield sums them (null for a malformed query)
+        int[][] queryTermIds = new int[queries.size()][];
+        //term id -> queries that have the term, once per occurrence
+        TreeMap<Integer, ArrayList<Integer>> termQueries = new TreeMap<>();
+        for (int q = 0; q < queries.size(); q++) {
+            String[] queryTerms = parseQuery(queries.get(q));
+            if(queryTerms == null) continue;
+
+            queryTermIds[q] = new int[queryTerms.length];
+            for (int i = 0; i < queryTerms.length; i++) {
+                queryTermIds[q][i] = termIds.computeIfAbsent(queryTerms[i], index.dictionary::id);
+                if(queryTermIds[q][i] >= 0)
+                    termQueries.computeIfAbsent(queryTermIds[q][i], termId -> new ArrayList<>()).add(q);
             }
+            Arrays.sort(queryTermIds[q]);
+        }
+
+        //every leader of every query at once: term after term in id order, so each query gets its
+        //leader relevances added up in the same order as getDocumentRelevance adds them
+        double[][] leaderRelevances = new double[queries.size()][index.leaderIds.length];
+        for (Map.Entry<Integer, ArrayList<Integer>> entry : termQueries.entrySet()) {
+            int[] termQueryIds = entry.getValue().stream().mapToInt(Integer::intValue).toArray();
+            index.addLeaderWeights(entry.getKey(), termQueryIds, leaderRelevances);
+        }
+
+        Ranking[] rankings = new Ranking[queries.size()];
+        IntStream.range(0, queries.size()).parallel().forEach(q -> {
+            QueryEvent event = new QueryEvent();
+            event.begin();
+            long start = metrics.start();
+
+            int[] ids = queryTermIds[q];
+            if(ids == null) {
+                rankings[q] = new Ranking();
+                endQuery(event, start, BATCH_QUERIES, queries.get(q), resultSize, rankings[q]);
+                return;
+            }
+
+            double[] queryLeaderRelevances = leaderRelevances[q];
+            rankings[q] = rank(index, documentId -> {
+                int leader = index.leaderIndex(documentId);
+                return leader >= 0 ? queryLeaderRelevances[leader] : getDocumentRelevance(index, ids, documentId);
+            }, resultSize);
+            rankings[q].terms = ids.length;
+            endQuery(event, start, BATCH_QUERIES, queries.get(q), resultSize, rankings[q]);
+        });
+
+        metrics.increment(BATCHES);
+        metrics.record(BATCH_SECONDS, batchStart);
+        return rankings;
+    }
+
+    /**
+     * Ends a search: commits its JFR event if it is recorded and adds it to the metrics if they are enabled.
+     */
+    private void endQuery(QueryEvent event, long start, QueryMetrics engine, String query, int k, Ranking ranking) {
+        event.end();
+        if(event.shouldCommit()) {
+            event.engine = engine.engine;
+            event.query = query;
+            event.k = k;
+            event.terms = ranking.terms;
+            event.leadersProbed = ranking.leadersProbed;
+            event.candidatesScored = ranking.scoredDocs;
+            event.results = ranking.docIds.size();
+            event.commit();
+        }
+
+        if(start != 0) {
+            metrics.record(engine.seconds, start);
+            metrics.increment(engine.queries);
+            metrics.add(engine.leadersProbed, ranking.leadersProbed);
+            metrics.add(engine.candidatesScored, ranking.scoredDocs);
         }
     }
 
-    private ArrayList<Integer> findWithQueryCranfield(String query) {
+    //terms of a well-formed query, null for a malformed one
+    private static String[] parseQuery(String query) {
         query = query.trim().toLowerCase();
-        if(!query.matches("[a-z]+(\\s+[a-z]+)*"))
-            return new ArrayList<>();
+        if(!QUERY_PATTERN.matcher(query).matches())
+            return null;
 
-        String[] queryTerms = query.split("\\s+");
+        return SPACES.split(query);
+    }
+
+    /**
+     * Cluster pruning: the clusters of the most relevant leaders are scored first,
+     * until resultSize documents are found.
+     */
+    private static Ranking rank(IndexSnapshot index, IntToDoubleFunction relevance, int resultSize) {
+        //the working maps are local, queries share nothing but the snapshot
+        Ranking ranking = new Ranking();
 
         TreeMap<Double, TreeSet<Integer>> mostRelevantLeaders = new TreeMap<>();
-        for (Integer leaderId : leaders) {
-            double leaderRelevance = getDocumentRelevance(queryTerms, leaderId);
+        for (Integer leaderId : index.leaders) {
+            double leaderRelevance = relevance.applyAsDouble(leaderId);
 
             if(!mostRelevantLeaders.containsKey(leaderRelevance))
                 mostRelevantLeaders.put(leaderRelevance, new TreeSet<>());
 
             mostRelevantLeaders.get(leaderRelevance).add(leaderId);
         }
+        ranking.leadersProbed = index.leaders.size();
+        ranking.scoredDocs += index.leaders.size();
 
         TreeMap<Float, TreeSet<Integer>> resultIds = new TreeMap<>();
         int resultsCount = 0;
-        while(resultsCount < RESULT_SIZE) {
+        //no leaders at all in the empty index served until the first build
+        while(resultsCount < resultSize && !mostRelevantLeaders.isEmpty()) {
             Double firstKey = mostRelevantLeaders.firstKey();
             if(mostRelevantLeaders.get(firstKey).isEmpty()) mostRelevantLeaders.remove(firstKey);
             if(mostRelevantLeaders.isEmpty()) break;
 
             TreeSet<Integer> firstLeadersSet = mostRelevantLeaders.get(mostRelevantLeaders.firstKey());
             Integer firstCandidateId = firstLeadersSet.first();
-            TreeSet<Integer> cluster = clusters.get(firstCandidateId);
+            SortedSet<Integer> cluster = index.clusters.get(firstCandidateId);
             firstLeadersSet.remove(firstCandidateId);
 
             TreeMap<Double, TreeSet<Integer>> mostRelevantDocuments = new TreeMap<>();
             for (Integer documentId : cluster) {
-                double documentRelevance = getDocumentRelevance(queryTerms, documentId);
+                double documentRelevance = relevance.applyAsDouble(documentId);
 
                 if(!mostRelevantDocuments.containsKey(documentRelevance))
                     mostRelevantDocuments.put(documentRelevance, new TreeSet<>());
 
                 mostRelevantDocuments.get(documentRelevance).add(documentId);
             }
+            ranking.scoredDocs += cluster.size();
             for (Double documentRelevance : mostRelevantDocuments.keySet()) {
                 for (Integer documentId : mostRelevantDocuments.get(documentRelevance)) {
                     float resultRelevance = (float)documentRelevance.doubleValue();
@@ -263,66 +561,291 @@ public class Clustering {
                     resultIds.get(resultRelevance).add(documentId);
                     resultsCount++;
 
-                    if(resultsCount >= RESULT_SIZE)
+                    if(resultsCount >= resultSize)
                         break;
                 }
-                if(resultsCount >= RESULT_SIZE)
+                if(resultsCount >= resultSize)
                     break;
             }
         }
 
-        ArrayList<Integer> result = new ArrayList<>();
-        for (Float resultRelevance : resultIds.keySet()) {
-            result.addAll(resultIds.get(resultRelevance));
+        //best first
+        for (Float resultRelevance : resultIds.descendingKeySet()) {
+            ranking.docIds.addAll(resultIds.get(resultRelevance));
         }
 
-        return result;
+        return ranking;
     }
 
-    private double getDocumentRelevance(String[] queryTerms, Integer documentId) {
+    private static double getDocumentRelevance(IndexSnapshot index, int[] queryTermIds, int documentId) {
+        DocumentVector vector = index.vectors.get(documentId);
         double documentRelevance = 0;
-        for (String queryTerm : queryTerms) {
-            Integer queryTermId = termIds.get(queryTerm);
-            if(queryTermId != null) {
-                Double queryTermWeight = vectors.get(documentId).getTermWight(queryTermId);
-                if(queryTermWeight != null) {
-                    documentRelevance += queryTermWeight;
-                }
+        for (int queryTermId : queryTermIds) {
+            if(queryTermId >= 0) {
+                documentRelevance += vector.getTermWight(queryTermId);
             }
         }
         return documentRelevance;
     }
 
+    /**
+     * Mean F1 of the first resultSize results of the Cranfield queries, the same as {@link #evaluate(int)}
+     * gives. The queries run as one batch, see {@link #findWithQueries(List, int)}.
+     */
     public double getFDegree(int resultSize) {
-        if(resultSize <= 0 || resultSize > documents.size())
-            resultSize = 10;
-        RESULT_SIZE = resultSize;
+        IndexSnapshot index = this.index;
+        if(resultSize <= 0 || resultSize > index.vectors.size())
+            resultSize = RESULT_SIZE;
+
+        Ranking[] rankings = findWithQueries(index, queries, resultSize);
+
+        double f = 0;
+        int judged = 0;
+        for (int i = 0; i < rankings.length; i++) {
+            BitSet relevant = relevances.get(i);
+            if(relevant == null || relevant.isEmpty()) continue;
+
+            f += measure(rankings[i].docIds, relevant, resultSize)[2];
+            judged++;
+        }
+        return judged > 0 ? f / judged : 0;
+    }
+
+    /**
+     * Runs all Cranfield queries in parallel and measures the first k results of each one:
+     * P@k, R@k, F1, MAP and nDCG@k, with the latency and the number of documents scored per query.
+     * All queries read the index published when the run starts, a build meanwhile changes nothing.
+     */
+    public Evaluation evaluate(int k) {
+        IndexSnapshot index = this.index;
+        if(k <= 0 || k > index.vectors.size())
+            k = RESULT_SIZE;
+        int resultSize = k;
+
+        int queriesCount = queries.size();
+        long[] latencies = new long[queriesCount];
+        int[] scoredDocs = new int[queriesCount];
+        //query -> P, R, F1, AP, nDCG (null without relevance judgments)
+        double[][] measures = new double[queriesCount][];
+
+        IntStream.range(0, queriesCount).parallel().forEach(i -> {
+            QueryEvent event = new QueryEvent();
+            event.begin();
+            long start = System.nanoTime();
+            Ranking ranking = findWithQueryCranfield(index, queries.get(i), resultSize);
+            latencies[i] = System.nanoTime() - start;
+            endQuery(event, start, CLUSTER_QUERIES, queries.get(i), resultSize, ranking);
+            scoredDocs[i] = ranking.scoredDocs;
+
+            BitSet relevant = relevances.get(i);
+            if(relevant != null && !relevant.isEmpty())
+                measures[i] = measure(ranking.docIds, relevant, resultSize);
+        });
+
+        double[] sums = new double[5];
+        int judged = 0;
+        for (double[] queryMeasures : measures) {
+            if(queryMeasures == null) continue;
+
+            for (int m = 0; m < sums.length; m++) {
+                sums[m] += queryMeasures[m];
+            }
+            judged++;
+        }
+        for (int m = 0; m < sums.length; m++) {
+            sums[m] = judged > 0 ? sums[m] / judged : 0;
+        }
+
+        double meanScoredDocs = queriesCount > 0 ? (double)Arrays.stream(scoredDocs).asLongStream().sum() / queriesCount : 0;
+        return new Evaluation(k, judged, sums[0], sums[1], sums[2], sums[3], sums[4], latencies, meanScoredDocs);
+    }
+
+    //P@k, R@k, F1, AP@k and nDCG@k (binary gains) of a ranking, best document first
+    private static double[] measure(ArrayList<Integer> ranking, BitSet relevant, int k) {
+        int relevantCount = relevant.cardinality();
+
+        int hits = 0;
+        double averagePrecision = 0;
+        double dcg = 0;
+        for (int rank = 0; rank < ranking.size() && rank < k; rank++) {
+            if(relevant.get(ranking.get(rank))) {
+                hits++;
+                averagePrecision += (double)hits / (rank + 1);
+                dcg += 1 / log2(rank + 2);
+            }
+        }
+
+        double idcg = 0;
+        for (int rank = 0; rank < Math.min(relevantCount, k); rank++) {
+            idcg += 1 / log2(rank + 2);
+        }
+
+        double p = (double)hits / k;
+        double r = (double)hits / relevantCount;
+        double f = p + r > 0 ? (2 * p * r) / (p + r) : 0;
+        return new double[] {p, r, f, averagePrecision / relevantCount, dcg / idcg};
+    }
+
+    private static double log2(double x) {
+        return Math.log(x) / Math.log(2);
+    }
+
+    /**
+     * Writes the built index and the Cranfield queries as a binary snapshot that {@link #load(Path)}
+     * restores without reading the collection again.
+     * <p>
+     * Layout (big-endian):
+     * <pre>
+     * header     : magic | version | seed | documentsCount
+     * dictionary : int(size) | term dictionary
+     * vectors    : per document size | euclidLength | int[size] term ids | double[size] weights
+     * clusters   : leadersCount | per leader id | followersCount | int[followersCount] ids
+     * queries    : queriesCount | per query int(length) UTF-8 bytes
+     * relevances : queriesCount | per query id | documentsCount | int[documentsCount] ids
+     * sources    : filesCount | per file int(length) UTF-8 path bytes | length | lastModified
+     * </pre>
+     */
+    public void save(Path path) throws IOException {
+        IndexSnapshot index = this.index;
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(index.seed);
+            out.writeInt(index.vectors.size());
+
+            out.writeInt((int)index.dictionary.sizeInBytes());
+            index.dictionary.writeTo(out);
+
+            for (DocumentVector vector : index.vectors) {
+                vector.writeTo(out);
+            }
 
-        double fDegree = 0;
+            out.writeInt(index.leaders.size());
+            for (Integer leaderId : index.leaders) {
+                SortedSet<Integer> cluster = index.clusters.get(leaderId);
+                out.writeInt(leaderId);
+                out.writeInt(cluster.size());
+                for (Integer followerId : cluster) {
+                    out.writeInt(followerId);
+                }
+            }
 
-        for (int i = 0; i < queries.size(); i++) {
-            ArrayList<Integer> expected = new ArrayList<>(relevances.get(i));
-            ArrayList<Integer> actual = findWithQueryCranfield(queries.get(i));
+            out.writeInt(queries.size());
+            for (String query : queries) {
+                byte[] bytes = query.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
 
-            assert(actual.size() == resultSize);
+            out.writeInt(relevances.size());
+            for (Map.Entry<Integer, BitSet> entry : relevances.entrySet()) {
+                BitSet relevant = entry.getValue();
+                out.writeInt(entry.getKey());
+                out.writeInt(relevant.cardinality());
+                for (int documentId = relevant.nextSetBit(0); documentId >= 0; documentId = relevant.nextSetBit(documentId + 1)) {
+                    out.writeInt(documentId);
+                }
+            }
 
-            int trueRelevant = 0;
-            for (Integer documentId : actual) {
-                if(expected.contains(documentId))
-                    trueRelevant++;
+            out.writeInt(sources.length);
+            for (Source source : sources) {
+                byte[] bytes = source.path.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.writeLong(source.length);
+                out.writeLong(source.lastModified);
             }
+        }
+    }
+
+    /**
+     * Restores an index written with {@link #save(Path)}: the same vectors and clusters, so queries
+     * and the F-degree give the same results as the saved index. The dictionary stays in the mapped file.
+     * The restored index has no document texts, a later build starts over from new Cranfield data.
+     */
+    public static Clustering load(Path path) throws IOException {
+        MappedByteBuffer buffer;
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        try {
+            if(buffer.getInt() != SNAPSHOT_MAGIC)
+                throw new IOException("Not a clustering snapshot");
+            int version = buffer.getInt();
+            if(version != SNAPSHOT_VERSION)
+                throw new IOException("Unsupported clustering snapshot version " + version);
 
-            double p = (double)trueRelevant / actual.size();
-            double r = (double)trueRelevant / expected.size();
+            Clustering clustering = new Clustering();
+            clustering.seed = buffer.getLong();
+            int documentsCount = buffer.getInt();
 
-            if(p + r > 0) {
-                double f = (2 * p * r) / (p + r);
-                fDegree += f;
+            int dictionarySize = buffer.getInt();
+            TermDictionary dictionary = TermDictionary.open(buffer.slice(buffer.position(), dictionarySize));
+            buffer.position(buffer.position() + dictionarySize);
+
+            ArrayList<DocumentVector> vectors = new ArrayList<>(documentsCount);
+            for (int docId = 0; docId < documentsCount; docId++) {
+                vectors.add(DocumentVector.readFrom(buffer));
+            }
+
+            HashMap<Integer, SortedSet<Integer>> clusters = new HashMap<>();
+            int leadersCount = buffer.getInt();
+            for (int l = 0; l < leadersCount; l++) {
+                int leaderId = buffer.getInt();
+                TreeSet<Integer> cluster = new TreeSet<>();
+                for (int followersCount = buffer.getInt(); followersCount > 0; followersCount--) {
+                    cluster.add(buffer.getInt());
+                }
+                clusters.put(leaderId, cluster);
+            }
+            clustering.index = new IndexSnapshot(clustering.seed, dictionary, vectors, clusters);
+
+            int queriesCount = buffer.getInt();
+            for (int q = 0; q < queriesCount; q++) {
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                clustering.queries.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+
+            int relevancesCount = buffer.getInt();
+            for (int q = 0; q < relevancesCount; q++) {
+                int queryId = buffer.getInt();
+                BitSet relevant = new BitSet();
+                for (int documentsLeft = buffer.getInt(); documentsLeft > 0; documentsLeft--) {
+                    relevant.set(buffer.getInt());
+                }
+                clustering.relevances.put(queryId, relevant);
             }
+
+            Source[] sources = new Source[buffer.getInt()];
+            for (int f = 0; f < sources.length; f++) {
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                sources[f] = new Source(new String(bytes, StandardCharsets.UTF_8), buffer.getLong(), buffer.getLong());
+            }
+            clustering.sources = sources;
+            return clustering;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new IOException("Corrupted clustering snapshot", e);
         }
+    }
 
-        fDegree /= getQueriesSize(queries.size());
-        return fDegree;
+    /**
+     * Whether the index was built from these Cranfield files, with the lengths and modification times
+     * they had when they were set; a loaded snapshot keeps them. Other, moved or changed files make it out of date.
+     */
+    public boolean isUpToDate(File documentsFile, File queriesFile, File relevanceFile) {
+        File[] files = {documentsFile, queriesFile, relevanceFile};
+        Source[] sources = this.sources;
+        if(sources.length != files.length) return false;
+
+        for (int f = 0; f < files.length; f++) {
+            if(!sources[f].path.equals(Source.path(files[f])) || files[f].length() != sources[f].length
+                    || files[f].lastModified() != sources[f].lastModified)
+                return false;
+        }
+        return true;
     }
 
     public void saveToFile(File file) {
@@ -335,14 +858,15 @@ public class Clustering {
 
     @Override
     public String toString() {
+        IndexSnapshot index = this.index;
         StringBuilder sb = new StringBuilder();
 
-        for (Integer leaderId : clusters.keySet()) {
+        for (Integer leaderId : index.clusters.keySet()) {
             sb.append("L")
                     .append(leaderId)
                     .append(" [ ");
 
-            for (Integer followerId : clusters.get(leaderId))
+            for (Integer followerId : index.clusters.get(leaderId))
                 sb.append(followerId).append(" ");
 
             sb.append("]\n");
@@ -351,56 +875,105 @@ public class Clustering {
         return sb.toString();
     }
 
-    private double getQueriesSize(int input) {
-        double a;
-        return input / 20.0;
+    /**
+     * Documents found for a query, best first, and what it took to find them: query terms,
+     * leaders probed and documents scored.
+     */
+    private static class Ranking {
+        private final ArrayList<Integer> docIds = new ArrayList<>();
+        private int terms;
+        private int leadersProbed;
+        private int scoredDocs;
     }
-}
 
-class DocumentVector {
-    private final HashMap<Integer, Double> vector;
-    private double euclidLength;
+    /**
+     * A Cranfield file: its path, length and modification time when it was set.
+     */
+    static final class Source {
+        final String path;
+        final long length;
+        final long lastModified;
 
-    DocumentVector() {
-        vector = new HashMap<>();
-    }
+        Source(File file) {
+            this(path(file), file.length(), file.lastModified());
+        }
 
-    double similarity(DocumentVector other) {
-        double res = 0;
-        for (Integer termId : vector.keySet()) {
-            if(other.containsTerm(termId)) {
-                res += getTermWight(termId) * other.getTermWight(termId);
-            }
+        Source(String path, long length, long lastModified) {
+            this.path = path;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        //the same file whatever the working directory and the path it was set with
+        static String path(File file) {
+            return file.getAbsoluteFile().toPath().normalize().toString();
         }
-        res /= (getEuclidLength() * other.getEuclidLength());
+    }
 
-        return res;
+    /**
+     * Metrics series of the queries of one engine.
+     */
+    private static final class QueryMetrics {
+        final String engine;
+        final String queries;
+        final String seconds;
+        final String leadersProbed;
+        final String candidatesScored;
+
+        QueryMetrics(String engine) {
+            String labels = "{engine=\"" + engine + "\"}";
+            this.engine = engine;
+            queries = "clustering_queries_total" + labels;
+            seconds = "clustering_query_seconds" + labels;
+            leadersProbed = "clustering_query_leaders_probed_total" + labels;
+            candidatesScored = "clustering_query_candidates_scored_total" + labels;
+        }
     }
+}
+
+class Postings {
+    //document ids (ascending) and term frequencies
+    private int[] docIds;
+    private int[] freqs;
+    private int size;
 
-    void put(int termId, double termWeight) {
-        vector.put(termId, termWeight);
+    Postings() {
+        docIds = new int[4];
+        freqs = new int[4];
+        size = 0;
     }
 
-    void computeLength() {
-        euclidLength = 0;
-        for (Double termWeight : vector.values()) {
-            euclidLength += Math.pow(termWeight, 2);
+    //documents are processed in ascending id order
+    void increment(int docId) {
+        if(size > 0 && docIds[size - 1] == docId) {
+            freqs[size - 1]++;
+            return;
         }
-        euclidLength = Math.sqrt(euclidLength);
+
+        if(size == docIds.length) {
+            docIds = Arrays.copyOf(docIds, size * 2);
+            freqs = Arrays.copyOf(freqs, size * 2);
+        }
+        docIds[size] = docId;
+        freqs[size] = 1;
+        size++;
     }
 
-    boolean containsTerm(int termId) {
-        return vector.containsKey(termId);
+    //index of the first posting with a document id >= docId
+    int lowerBound(int docId) {
+        int index = Arrays.binarySearch(docIds, 0, size, docId);
+        return index >= 0 ? index : -index - 1;
     }
 
-    Double getTermWight(int termId) {
-        if(!containsTerm(termId))
-            return null;
+    int size() {
+        return size;
+    }
 
-        return vector.get(termId);
+    int docId(int i) {
+        return docIds[i];
     }
 
-    double getEuclidLength() {
-        return euclidLength;
+    int freq(int i) {
+        return freqs[i];
     }
 }
@@ -0,0 +1,182 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streaming reader of Cranfield-format collections: records start with {@code .I}, fields with
+ * {@code .T} (title), {@code .A}, {@code .B} and {@code .W} (text).
+ * Only the title and the first text field of a record are passed on.
+ * <p>
+ * Plain files are memory-mapped window by window and the title and text lines are handed to the consumer
+ * as views of the mapped bytes, so no document is ever copied into a String. Files ending with {@code .gz}
+ * are decompressed on the fly into one reusable buffer. Bytes are read as Latin-1 chars, which keeps
+ * the ASCII letters the tokenizer looks at.
+ */
+final class CranfieldReader {
+    //bytes mapped at once; a window ends after its last complete line, the next one starts right there
+    static final int WINDOW_SIZE = 1 << 30;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Path path;
+    private final int windowSize;
+
+    //records seen so far, the current one is records - 1
+    private int records;
+    //inside a .T or .W field
+    private boolean inText;
+    //the .W field of the current record is over, the rest of the record is skipped
+    //(record 576 of cran.all.1400 has the text of another record under a second .W)
+    private boolean textRead;
+    private final ByteSequence line = new ByteSequence();
+
+    CranfieldReader(Path path) {
+        this(path, WINDOW_SIZE);
+    }
+
+    CranfieldReader(Path path, int windowSize) {
+        if(windowSize <= 0)
+            throw new IllegalArgumentException("Invalid window size: " + windowSize);
+
+        this.path = path;
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Passes every title and text line of the collection to the consumer, records numbered from 0.
+     * The line is only valid during the call.
+     * @return the number of records.
+     */
+    int read(LineConsumer consumer) throws IOException {
+        records = 0;
+        inText = false;
+        textRead = false;
+
+        if(path.getFileName().toString().endsWith(".gz")) readCompressed(consumer);
+        else readMapped(consumer);
+        return records;
+    }
+
+    private void readMapped(LineConsumer consumer) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while(position < size) {
+                int length = (int)Math.min(windowSize, size - position);
+                boolean last = position + length == size;
+
+                int consumed = scan(channel.map(FileChannel.MapMode.READ_ONLY, position, length), length, last, consumer);
+                if(consumed == 0 && !last)
+                    throw new IOException("Line longer than " + windowSize + " bytes at " + position + " in " + path);
+                position += consumed;
+            }
+        }
+    }
+
+    private void readCompressed(LineConsumer consumer) throws IOException {
+        try(InputStream in = new GZIPInputStream(Files.newInputStream(path), BUFFER_SIZE)) {
+            byte[] bytes = new byte[BUFFER_SIZE];
+            int length = 0;
+            boolean last = false;
+            while(!last) {
+                int n = in.read(bytes, length, bytes.length - length);
+                if(n < 0) last = true;
+                else length += n;
+
+                //unfinished last line moves to the front
+                int consumed = scan(ByteBuffer.wrap(bytes), length, last, consumer);
+                System.arraycopy(bytes, consumed, bytes, 0, length - consumed);
+                length -= consumed;
+                if(length == bytes.length) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+        }
+    }
+
+    //passes on the complete lines of buffer[0, length), the unterminated last one only at the end of the input
+    private int scan(ByteBuffer buffer, int length, boolean last, LineConsumer consumer) {
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            if(buffer.get(i) == '\n') {
+                line(buffer, start, i, consumer);
+                start = i + 1;
+            }
+        }
+        if(last && start < length) {
+            line(buffer, start, length, consumer);
+            start = length;
+        }
+        return start;
+    }
+
+    private void line(ByteBuffer buffer, int from, int to, LineConsumer consumer) {
+        if(to > from && buffer.get(from) == '.') {
+            byte field = to > from + 1 ? buffer.get(from + 1) : 0;
+            if(field == 'I') {
+                records++;
+                textRead = false;
+            }
+            inText = records > 0 && !textRead && (field == 'T' || field == 'W');
+            if(field == 'W') textRead = true;
+            return;
+        }
+
+        if(inText) {
+            line.reset(buffer, from, to);
+            consumer.accept(line, records - 1);
+        }
+    }
+
+    interface LineConsumer {
+        void accept(CharSequence line, int docId);
+    }
+
+    /**
+     * Latin-1 view of a range of a byte buffer.
+     */
+    private static final class ByteSequence implements CharSequence {
+        private ByteBuffer buffer;
+        private int from;
+        private int to;
+
+        ByteSequence() {
+        }
+
+        ByteSequence(ByteBuffer buffer, int from, int to) {
+            reset(buffer, from, to);
+        }
+
+        void reset(ByteBuffer buffer, int from, int to) {
+            this.buffer = buffer;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public int length() {
+            return to - from;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char)(buffer.get(from + index) & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new ByteSequence(buffer, from + start, from + end);
+        }
+
+        @Override
+        public String toString() {
+            byte[] bytes = new byte[length()];
+            buffer.get(from, bytes);
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
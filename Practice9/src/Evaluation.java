@@ -0,0 +1,91 @@
+import java.util.Arrays;
+
+/**
+ * Quality and speed of one run of the Cranfield queries with a cutoff of k documents.
+ * <p>
+ * Quality measures are averaged over the queries with relevance judgments; nDCG uses binary gains.
+ * Latencies are per query, measured while the other queries run on the same cores.
+ */
+public class Evaluation {
+    private final int k;
+    private final int queriesCount;
+    private final double precision;
+    private final double recall;
+    private final double f1;
+    private final double map;
+    private final double ndcg;
+    //ascending, nanoseconds
+    private final long[] latencies;
+    private final double scoredDocs;
+
+    Evaluation(int k, int queriesCount, double precision, double recall, double f1, double map, double ndcg,
+               long[] latencies, double scoredDocs) {
+        this.k = k;
+        this.queriesCount = queriesCount;
+        this.precision = precision;
+        this.recall = recall;
+        this.f1 = f1;
+        this.map = map;
+        this.ndcg = ndcg;
+        this.latencies = latencies.clone();
+        Arrays.sort(this.latencies);
+        this.scoredDocs = scoredDocs;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    /**
+     * Returns the number of queries with relevance judgments, the quality measures are their means.
+     */
+    public int getQueriesCount() {
+        return queriesCount;
+    }
+
+    public double getPrecision() {
+        return precision;
+    }
+
+    public double getRecall() {
+        return recall;
+    }
+
+    public double getF1() {
+        return f1;
+    }
+
+    public double getMAP() {
+        return map;
+    }
+
+    public double getNDCG() {
+        return ndcg;
+    }
+
+    /**
+     * Returns the query latency at a percentile (nearest rank), in milliseconds.
+     * @param percentile 0 - 100.
+     */
+    public double getLatency(double percentile) {
+        if(latencies.length == 0) return 0;
+
+        int rank = (int)Math.ceil(percentile / 100 * latencies.length);
+        return latencies[Math.min(Math.max(rank, 1), latencies.length) - 1] / 1e6;
+    }
+
+    /**
+     * Returns the mean number of documents whose relevance a query computed.
+     */
+    public double getScoredDocs() {
+        return scoredDocs;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("P@%d = %.4f, R@%d = %.4f, F1 = %.4f, MAP = %.4f, nDCG@%d = %.4f (%d queries)%n"
+                        + "latency p50 = %.3f ms, p95 = %.3f ms, p99 = %.3f ms, %.1f documents scored per query",
+                k, precision, k, recall, f1, map, k, ndcg, queriesCount,
+                getLatency(50), getLatency(95), getLatency(99), scoredDocs);
+    }
+}
@@ -0,0 +1,151 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * A built index as the queries see it: dictionary, vectors, clusters and the postings of the leaders.
+ * Nothing in it changes once it is published, so any number of threads read it without locks
+ * while the next one is being built.
+ */
+final class IndexSnapshot {
+    //structures of the heap usage, and the key of their total
+    static final String[] STRUCTURES = {"dictionary", "vectors", "clusters", "leaders"};
+    static final String TOTAL = "total";
+
+    //heap size estimates of a 64-bit JVM with compressed references
+    static final int OBJECT_HEADER = 12;
+    static final int ARRAY_HEADER = 16;
+    static final int REFERENCE = 4;
+    //boxed id, HashMap entry, TreeMap entry, TreeSet with its TreeMap, unmodifiable view
+    private static final int BOXED_INT = 16;
+    private static final int HASH_ENTRY = 32;
+    private static final int TREE_ENTRY = 40;
+    private static final int TREE_SET = 64;
+    private static final int VIEW = 24;
+
+    static final IndexSnapshot EMPTY = new IndexSnapshot(0, TermDictionary.build(new ArrayList<>()),
+            new ArrayList<>(), new HashMap<>());
+
+    //seed the leaders were selected with
+    final long seed;
+    //term ids
+    final TermDictionary dictionary;
+    //documents' vectors
+    final List<DocumentVector> vectors;
+    //leaders documents' ids
+    final SortedSet<Integer> leaders;
+    //clusters (leader -> followers)
+    final Map<Integer, SortedSet<Integer>> clusters;
+    //leaders documents' ids, ascending
+    final int[] leaderIds;
+    //term id -> range of its leader postings: indexes into leaderIds and weights
+    private final int[] leaderOffsets;
+    private final int[] leaderPostings;
+    private final double[] leaderWeights;
+    //estimated heap bytes per structure and their total
+    final Map<String, Long> heapUsage;
+
+    //takes the built structures over, nobody else may change them afterwards
+    IndexSnapshot(long seed, TermDictionary dictionary, List<DocumentVector> vectors,
+                  HashMap<Integer, SortedSet<Integer>> clusters) {
+        this.seed = seed;
+        this.dictionary = dictionary;
+        this.vectors = Collections.unmodifiableList(vectors);
+
+        //in place, the map keeps its iteration order
+        clusters.replaceAll((leaderId, cluster) -> Collections.unmodifiableSortedSet(cluster));
+        this.clusters = Collections.unmodifiableMap(clusters);
+        this.leaders = Collections.unmodifiableSortedSet(new TreeSet<>(clusters.keySet()));
+
+        //the leaders' vectors by term, every query scores all leaders
+        leaderIds = leaders.stream().mapToInt(Integer::intValue).toArray();
+        int termsCount = dictionary.size();
+        leaderOffsets = new int[termsCount + 1];
+        for (int leaderId : leaderIds) {
+            DocumentVector vector = vectors.get(leaderId);
+            for (int i = 0; i < vector.size(); i++) {
+                leaderOffsets[vector.termId(i) + 1]++;
+            }
+        }
+        for (int termId = 0; termId < termsCount; termId++) {
+            leaderOffsets[termId + 1] += leaderOffsets[termId];
+        }
+
+        leaderPostings = new int[leaderOffsets[termsCount]];
+        leaderWeights = new double[leaderOffsets[termsCount]];
+        int[] next = Arrays.copyOf(leaderOffsets, termsCount);
+        for (int l = 0; l < leaderIds.length; l++) {
+            DocumentVector vector = vectors.get(leaderIds[l]);
+            for (int i = 0; i < vector.size(); i++) {
+                int posting = next[vector.termId(i)]++;
+                leaderPostings[posting] = l;
+                leaderWeights[posting] = vector.weight(i);
+            }
+        }
+
+        //a mapped dictionary is not on the heap
+        LinkedHashMap<String, Long> heapUsage = new LinkedHashMap<>();
+        heapUsage.put("dictionary", dictionary.isOnHeap() ? dictionary.sizeInBytes() : 0);
+        heapUsage.put("vectors", vectorsBytes(vectors));
+        heapUsage.put("clusters", clustersBytes(this.clusters) + TREE_SET + (long)leaders.size() * TREE_ENTRY);
+        heapUsage.put("leaders", arrayBytes(leaderIds.length, Integer.BYTES) + arrayBytes(leaderOffsets.length, Integer.BYTES)
+                + arrayBytes(leaderPostings.length, Integer.BYTES) + arrayBytes(leaderWeights.length, Double.BYTES));
+        heapUsage.put(TOTAL, heapUsage.values().stream().mapToLong(Long::longValue).sum());
+        this.heapUsage = Collections.unmodifiableMap(heapUsage);
+    }
+
+    /**
+     * Adds the weight of a term in every leader that has it to the leader relevances of each of the queries
+     * (listed once per occurrence of the term), reading the leader postings of the term once for all of them.
+     * leaderRelevances is indexed by query, then like leaderIds.
+     */
+    void addLeaderWeights(int termId, int[] queries, double[][] leaderRelevances) {
+        for (int posting = leaderOffsets[termId]; posting < leaderOffsets[termId + 1]; posting++) {
+            int leader = leaderPostings[posting];
+            double weight = leaderWeights[posting];
+            for (int query : queries) {
+                leaderRelevances[query][leader] += weight;
+            }
+        }
+    }
+
+    //position of a document in leaderIds, negative for a follower
+    int leaderIndex(int docId) {
+        return Arrays.binarySearch(leaderIds, docId);
+    }
+
+    static long vectorsBytes(List<DocumentVector> vectors) {
+        long bytes = arrayBytes(vectors.size(), REFERENCE);
+        for (DocumentVector vector : vectors) {
+            bytes += vector.sizeInBytes();
+        }
+        return bytes;
+    }
+
+    static long clustersBytes(Map<Integer, SortedSet<Integer>> clusters) {
+        long bytes = arrayBytes(Integer.highestOneBit(Math.max(1, clusters.size() * 4 / 3)) * 2L, REFERENCE);
+        for (SortedSet<Integer> cluster : clusters.values()) {
+            bytes += HASH_ENTRY + BOXED_INT + VIEW + TREE_SET + (long)cluster.size() * (TREE_ENTRY + BOXED_INT);
+        }
+        return bytes;
+    }
+
+    static long objectBytes(long fieldsBytes) {
+        return align(OBJECT_HEADER + fieldsBytes);
+    }
+
+    static long arrayBytes(long length, int elementBytes) {
+        return align(ARRAY_HEADER + length * elementBytes);
+    }
+
+    //objects take multiples of 8 bytes
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+}
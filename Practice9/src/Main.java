@@ -1,4 +1,7 @@
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Objects;
 import java.util.Scanner;
@@ -6,16 +9,44 @@ import java.util.Scanner;
 public class Main {
 
     public static void main(String[] args) {
-        Clustering clusterIndex = new Clustering();
         File documentsFile = new File("src/cranfield/cran.all.1400");
         File queriesFile = new File("src/cranfield/cran.qry");
         File relevanceFile = new File("src/cranfield/cranqrel");
+        Path snapshotFile = Path.of("src/output/clustering.bin");
 
-        clusterIndex.setDataCranfield(documentsFile, queriesFile, relevanceFile);
+        Clustering clusterIndex = null;
+        if(Files.exists(snapshotFile)) {
+            try {
+                clusterIndex = Clustering.load(snapshotFile);
+                //collection, queries or relevances replaced or changed since the snapshot was written
+                if(!clusterIndex.isUpToDate(documentsFile, queriesFile, relevanceFile)) clusterIndex = null;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
 
-        clusterIndex.build();
-        clusterIndex.saveToFile(new File("src/output/clusters.txt"));
+        if(clusterIndex == null) {
+            clusterIndex = new Clustering();
+            clusterIndex.setDataCranfield(documentsFile, queriesFile, relevanceFile);
 
-        System.out.println(clusterIndex.getFDegree(100));
+            clusterIndex.build();
+            clusterIndex.saveToFile(new File("src/output/clusters.txt"));
+
+            try {
+                Files.createDirectories(snapshotFile.getParent());
+                clusterIndex.save(snapshotFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        System.out.println(clusterIndex.evaluate(100));
+
+        //timings and counters of the build and the queries, in the Prometheus text format
+        try {
+            Files.writeString(Path.of("src/output/metrics.txt"), clusterIndex.getMetrics().scrape());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 }
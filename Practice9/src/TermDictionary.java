@@ -0,0 +1,297 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Immutable sorted term dictionary, term ids are the ranks of the terms (0 .. size - 1).
+ * <p>
+ * Terms are front-coded in blocks of {@link #BLOCK_SIZE}: the first term of a block is stored
+ * whole, every next one as the length of the prefix shared with the previous term plus the rest.
+ * Layout (big-endian, the same in memory and on disk, so a written dictionary can be mapped):
+ * <pre>
+ * header : magic | version | termsCount | blocksCount
+ * blocks : int[blocksCount] block offsets in data
+ * data   : per block varint(length) bytes, then (BLOCK_SIZE - 1) x varint(prefix) varint(length) bytes
+ * </pre>
+ * Terms are compared as UTF-8 bytes. All reads are absolute, so a dictionary can be shared between threads.
+ */
+final class TermDictionary {
+    static final int MAGIC = 0x54444943; // "TDIC"
+    static final int VERSION = 1;
+    static final int BLOCK_SIZE = 16;
+
+    private static final int HEADER_SIZE = 4 * Integer.BYTES;
+
+    private final ByteBuffer buffer;
+    private final int termsCount;
+    private final int blocksCount;
+    private final int dataOffset;
+
+    private TermDictionary(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if(buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a term dictionary");
+        if(buffer.getInt(4) != VERSION)
+            throw new IOException("Unsupported term dictionary version " + buffer.getInt(4));
+
+        termsCount = buffer.getInt(8);
+        blocksCount = buffer.getInt(12);
+        dataOffset = HEADER_SIZE + blocksCount * Integer.BYTES;
+    }
+
+    /**
+     * Builds a dictionary of distinct terms (in any order).
+     */
+    static TermDictionary build(Collection<String> terms) {
+        byte[][] sorted = new byte[terms.size()][];
+        int i = 0;
+        for (String term : terms) {
+            sorted[i++] = term.getBytes(StandardCharsets.UTF_8);
+        }
+        Arrays.sort(sorted, Arrays::compareUnsigned);
+
+        int blocksCount = (sorted.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int[] blockOffsets = new int[blocksCount];
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (int id = 0; id < sorted.length; id++) {
+            if(id % BLOCK_SIZE == 0) {
+                blockOffsets[id / BLOCK_SIZE] = data.size();
+                writeVarInt(data, sorted[id].length);
+                data.write(sorted[id], 0, sorted[id].length);
+            }
+            else {
+                int prefix = Arrays.mismatch(sorted[id - 1], sorted[id]);
+                writeVarInt(data, prefix);
+                writeVarInt(data, sorted[id].length - prefix);
+                data.write(sorted[id], prefix, sorted[id].length - prefix);
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + blocksCount * Integer.BYTES + data.size());
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(sorted.length).putInt(blocksCount);
+        for (int blockOffset : blockOffsets) buffer.putInt(blockOffset);
+        buffer.put(data.toByteArray());
+        try {
+            return new TermDictionary(buffer);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Maps a dictionary written with {@link #write(Path)}.
+     */
+    static TermDictionary open(Path path) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return open(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Wraps a written dictionary, e.g. a slice of a bigger mapped file; the buffer is used as is, not copied.
+     */
+    static TermDictionary open(ByteBuffer buffer) throws IOException {
+        return new TermDictionary(buffer);
+    }
+
+    void write(Path path) throws IOException {
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            writeTo(out);
+        }
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        byte[] bytes = new byte[buffer.capacity()];
+        buffer.get(0, bytes);
+        out.write(bytes);
+    }
+
+    int size() {
+        return termsCount;
+    }
+
+    /**
+     * @return the id of the term or -1 if it is not in the dictionary.
+     */
+    int id(String term) {
+        int index = search(term.getBytes(StandardCharsets.UTF_8));
+        return index >= 0 ? index : -1;
+    }
+
+    String term(int id) {
+        if(id < 0 || id >= termsCount)
+            throw new IndexOutOfBoundsException("Term id " + id + " out of " + termsCount);
+
+        return new String(termBytes(id), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Ids of the terms starting with the prefix, they are consecutive.
+     * @return {from (inclusive), to (exclusive)}.
+     */
+    int[] prefixRange(String prefix) {
+        byte[] from = prefix.getBytes(StandardCharsets.UTF_8);
+
+        //the smallest key greater than every term with the prefix
+        byte[] to = Arrays.copyOf(from, from.length);
+        int last = to.length - 1;
+        while(last >= 0 && to[last] == (byte)0xFF) last--;
+        if(last < 0) return new int[] {lowerBound(from), termsCount};
+        to = Arrays.copyOf(to, last + 1);
+        to[last]++;
+
+        return new int[] {lowerBound(from), lowerBound(to)};
+    }
+
+    /**
+     * Decodes the terms with ids from .. to - 1 in order.
+     */
+    void forEach(int from, int to, TermConsumer consumer) {
+        from = Math.max(from, 0);
+        to = Math.min(to, termsCount);
+        if(from >= to) return;
+
+        Cursor cursor = new Cursor(from / BLOCK_SIZE);
+        for (int id = cursor.id; id < to; id++) {
+            if(id % BLOCK_SIZE == 0) cursor = new Cursor(id / BLOCK_SIZE);
+            cursor.next();
+            if(id >= from) consumer.accept(id, new String(cursor.term, 0, cursor.length, StandardCharsets.UTF_8));
+        }
+    }
+
+    long sizeInBytes() {
+        return buffer.capacity();
+    }
+
+    //the terms are in a heap buffer, not in a mapped file
+    boolean isOnHeap() {
+        return !buffer.isDirect();
+    }
+
+    //id of the first term >= key
+    private int lowerBound(byte[] key) {
+        int index = search(key);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    //id of the key, or (-(insertion point) - 1) as Arrays.binarySearch
+    private int search(byte[] key) {
+        //last block whose first term is <= key
+        int lo = 0;
+        int hi = blocksCount - 1;
+        int block = -1;
+        while(lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int pos = blockStart(mid);
+            long value = readVarInt(pos);
+            if(compare(pos + (int)(value >>> 32), (int)value, key) <= 0) {
+                block = mid;
+                lo = mid + 1;
+            }
+            else hi = mid - 1;
+        }
+        if(block < 0) return -1;
+
+        //scan the block
+        Cursor cursor = new Cursor(block);
+        int end = Math.min((block + 1) * BLOCK_SIZE, termsCount);
+        for (int id = cursor.id; id < end; id++) {
+            cursor.next();
+            int cmp = Arrays.compareUnsigned(cursor.term, 0, cursor.length, key, 0, key.length);
+            if(cmp == 0) return id;
+            if(cmp > 0) return -id - 1;
+        }
+        return -end - 1;
+    }
+
+    private byte[] termBytes(int id) {
+        Cursor cursor = new Cursor(id / BLOCK_SIZE);
+        for (int i = cursor.id; i <= id; i++) {
+            cursor.next();
+        }
+        return Arrays.copyOf(cursor.term, cursor.length);
+    }
+
+    private int blockStart(int block) {
+        return dataOffset + buffer.getInt(HEADER_SIZE + block * Integer.BYTES);
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    //low 32 bits - value, high 32 bits - encoded length
+    private long readVarInt(int pos) {
+        int value = 0;
+        int shift = 0;
+        int length = 0;
+        byte b;
+        do {
+            b = buffer.get(pos + length++);
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while((b & 0x80) != 0);
+        return ((long)length << 32) | (value & 0xFFFFFFFFL);
+    }
+
+    private int compare(int pos, int length, byte[] key) {
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (buffer.get(pos + i) & 0xFF) - (key[i] & 0xFF);
+            if(cmp != 0) return cmp;
+        }
+        return length - key.length;
+    }
+
+    /**
+     * Decodes the terms of a block one by one.
+     */
+    private class Cursor {
+        private final int id;
+        private int pos;
+        private boolean first = true;
+        private byte[] term = new byte[32];
+        private int length;
+
+        Cursor(int block) {
+            id = block * BLOCK_SIZE;
+            pos = blockStart(block);
+        }
+
+        void next() {
+            int prefix = 0;
+            if(!first) {
+                long value = readVarInt(pos);
+                prefix = (int)value;
+                pos += (int)(value >>> 32);
+            }
+            first = false;
+
+            long value = readVarInt(pos);
+            int suffix = (int)value;
+            pos += (int)(value >>> 32);
+
+            if(term.length < prefix + suffix) term = Arrays.copyOf(term, Math.max(prefix + suffix, term.length * 2));
+            buffer.get(pos, term, prefix, suffix);
+            pos += suffix;
+            length = prefix + suffix;
+        }
+    }
+
+    interface TermConsumer {
+        void accept(int id, String term);
+    }
+}